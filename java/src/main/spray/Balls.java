@@ -1,140 +1,808 @@
 package spray;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
-import com.google.common.base.Function;
-import com.google.common.base.Predicate;
-import com.google.common.collect.FluentIterable;
-import com.google.common.collect.Ordering;
+import com.google.common.collect.AbstractIterator;
 import spray.Geometry.IsVec3;
 import spray.Geometry.Line3;
+import spray.Geometry.Sphere;
 import spray.Geometry.Vec3;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
 import static spray.Geometry.aToB;
 import static spray.Geometry.distance;
 import static spray.Geometry.pointAndStep;
+import static spray.Geometry.xyz;
 
-public class Balls<V extends IsVec3> {
-
-    public final Set<V> balls = new HashSet<V>();
+/**
+ * A set of balls, kept as arrays of center coordinates and radii indexed by ball id.
+ * A ball's id stays the same until it is removed, after which the id may be reused.
+ *
+ * The arrays are split into chunks of ids, which snapshots share with the set until it
+ * next changes them, so a snapshot costs a pointer per chunk rather than a copy.
+ */
+public class Balls {
 
+    /** The radius of balls added without one. */
     float radius = 8;
 
-    public Balls() { }
+    /** The width of the cells that index the balls by location, in radii of the biggest ball they may hold. */
+    private static final float CELL_RADII = 4;
+
+    /** Ids are grouped into chunks of 2 ^ CHUNK_SHIFT. */
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK = 1 << CHUNK_SHIFT;
+    private static final int MASK = CHUNK - 1;
+
+    /** Marks an id in use in nextFree. */
+    private static final int LIVE = -2;
+
+    private float[][] x, y, z, radii;
+
+    /** Links the ids free for reuse, ending with -1; LIVE for those in use. */
+    private int[][] nextFree;
+    private int firstFree;
+    private int idBound;
+    private int size;
+
+    /** How many snapshots have been taken, and when each chunk was last copied; older chunks are shared. */
+    private int generation;
+    private int[] chunkGenerations;
+
+    /** Snapshots cannot change. */
+    private boolean frozen;
+
+    /** The index of the balls by location, one level per size; built on first use in a snapshot. */
+    private List<Level> levels;
+
+    /** Places sprayed balls; kept apart from Mesh.pool so that a frame's spray never waits behind meshing. */
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
+    /** Batches smaller than this are placed on the calling thread. */
+    private static final int MIN_PARALLEL_RAYS = 4;
+
+    /** Kept up to date by add and remove once distanceField is first called. */
+    private DistanceField field;
+
+    /** The most changes kept for changesSince; the older half is dropped when there are more. */
+    private static final int MAX_LOG = 1 << 16;
+
+    /** Counts the changes made, with clear counting as one. */
+    private long version;
 
-    public Balls(Iterable<V> balls) {
-        for (V ball : balls) {
-            this.balls.add(ball);
+    /** The latest changes, after version logStart: the ball, where it was, and whether it came or went. */
+    private long logStart;
+    private int logSize;
+    private int[] logIds;
+    private float[] logX, logY, logZ, logRadii;
+    private boolean[] logAdded;
+
+    public Balls() {
+        clear();
+    }
+
+    public Balls(Iterable<? extends IsVec3> centers) {
+        this();
+        for (IsVec3 center : centers) {
+            add(center);
         }
     }
 
+    private Balls(Balls balls) {
+        radius = balls.radius;
+        x = balls.x.clone();
+        y = balls.y.clone();
+        z = balls.z.clone();
+        radii = balls.radii.clone();
+        nextFree = balls.nextFree.clone();
+        firstFree = balls.firstFree;
+        idBound = balls.idBound;
+        size = balls.size;
+        frozen = true;
+        field = balls.field == null ? null : balls.field.snapshot();
+        version = balls.version;
+        clearLog();
+    }
+
+    /**
+     * An unchangeable copy of the balls as they are now, which later changes to this set do
+     * not affect. Its distance field, if this set has one, is a snapshot too.
+     */
+    public Balls snapshot() {
+        Balls snapshot = new Balls(this);
+        generation++;
+        return snapshot;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Counts the changes made to the set. A snapshot has the version of the set it was taken from.
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * What changed since the given version, or null if it is older than the changes this set
+     * keeps, or older than its last clear, in which case the reader must start over. Balls
+     * added and removed again in between are left out, so the result is no bigger than the
+     * difference between the two versions.
+     */
+    public Changes changesSince(long since) {
+        if (since < logStart) {
+            return null;
+        }
+        // The first and last event for each ball in the range says whether it was there before and is there now.
+        Map<Integer, Integer> first = newLinkedHashMap(), last = newHashMap();
+        for (int i = (int) (since - logStart); i < logSize; i++) {
+            if (!first.containsKey(logIds[i])) {
+                first.put(logIds[i], i);
+            }
+            last.put(logIds[i], i);
+        }
+        List<Sphere> added = newArrayList(), removed = newArrayList();
+        for (Map.Entry<Integer, Integer> entry : first.entrySet()) {
+            int before = entry.getValue(), after = last.get(entry.getKey());
+            if (!logAdded[before]) {
+                removed.add(Geometry.sphere(xyz(logX[before], logY[before], logZ[before]), logRadii[before]));
+            }
+            if (logAdded[after]) {
+                added.add(Geometry.sphere(xyz(logX[after], logY[after], logZ[after]), logRadii[after]));
+            }
+        }
+        return new Changes(since, version, added, removed);
+    }
+
+    /**
+     * The balls added to and removed from a set between two of its versions.
+     */
+    public static final class Changes {
+
+        public final long from, to;
+
+        public final List<Sphere> added, removed;
+
+        Changes(long from, long to, List<Sphere> added, List<Sphere> removed) {
+            this.from = from;
+            this.to = to;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+
+    }
+
+    /** Every id in use is less than this. */
+    public int idBound() {
+        return idBound;
+    }
+
+    public boolean contains(int id) {
+        return id >= 0 && id < idBound && nextFree[id >> CHUNK_SHIFT][id & MASK] == LIVE;
+    }
+
+    public float x(int id) {
+        return x[id >> CHUNK_SHIFT][id & MASK];
+    }
+
+    public float y(int id) {
+        return y[id >> CHUNK_SHIFT][id & MASK];
+    }
+
+    public float z(int id) {
+        return z[id >> CHUNK_SHIFT][id & MASK];
+    }
+
+    public float radius(int id) {
+        return radii[id >> CHUNK_SHIFT][id & MASK];
+    }
+
+    public Vec3 center(int id) {
+        return xyz(x(id), y(id), z(id));
+    }
+
+    public Sphere sphere(int id) {
+        return Geometry.sphere(center(id), radius(id));
+    }
+
     /**
-     * Find the first ball the ray hits.
+     * The balls, made as they are iterated.
      */
-    V raySearch(final Line3 ray) {
-        try {
-            return Ordering.natural()
-                .onResultOf(
-                    new Function<V, Float>() {
-                        public Float apply(V ball) {
-                            return distance(ball, ray.a());
+    public Iterable<Sphere> spheres() {
+        return new Iterable<Sphere>() {
+            public Iterator<Sphere> iterator() {
+                return new AbstractIterator<Sphere>() {
+                    int id = -1;
+
+                    protected Sphere computeNext() {
+                        while (++id < idBound) {
+                            if (contains(id)) {
+                                return sphere(id);
+                            }
                         }
+                        return endOfData();
                     }
-                )
-                .min(
-                    FluentIterable.from(balls)
-                        .filter(new Predicate<V>() {
-                            public boolean apply(V ball) {
-                                return distance(ray, ball) < radius;
-                            }
-                        })
-                );
-        } catch (NoSuchElementException e) {
-            return null;
+                };
+            }
+        };
+    }
+
+    /**
+     * Add a ball of the default radius.
+     *
+     * @return the new ball's id
+     */
+    public int add(IsVec3 center) {
+        return add(center, radius);
+    }
+
+    /**
+     * @return the new ball's id
+     */
+    public int add(IsVec3 center, float ballRadius) {
+        checkState(!frozen, "a snapshot cannot change");
+        checkArgument(ballRadius > 0, "radius must be positive");
+        int id;
+        if (firstFree != -1) {
+            id = firstFree;
+            own(id >> CHUNK_SHIFT);
+            firstFree = nextFree[id >> CHUNK_SHIFT][id & MASK];
+        } else {
+            id = idBound++;
+            if ((id & MASK) == 0) {
+                addChunk();
+            }
+        }
+        int chunk = id >> CHUNK_SHIFT, i = id & MASK;
+        Vec3 c = center.asVec3();
+        x[chunk][i] = c.x();
+        y[chunk][i] = c.y();
+        z[chunk][i] = c.z();
+        radii[chunk][i] = ballRadius;
+        nextFree[chunk][i] = LIVE;
+        size++;
+        addToCell(id);
+        if (field != null) {
+            field.add(c, ballRadius);
         }
+        log(id, true);
+        return id;
+    }
+
+    public boolean remove(int id) {
+        checkState(!frozen, "a snapshot cannot change");
+        if (!contains(id)) {
+            return false;
+        }
+        removeFromCell(id);
+        if (field != null) {
+            field.remove(center(id), radius(id));
+        }
+        log(id, false);
+        own(id >> CHUNK_SHIFT);
+        nextFree[id >> CHUNK_SHIFT][id & MASK] = firstFree;
+        firstFree = id;
+        size--;
+        return true;
+    }
+
+    public void clear() {
+        checkState(!frozen, "a snapshot cannot change");
+        x = new float[0][];
+        y = new float[0][];
+        z = new float[0][];
+        radii = new float[0][];
+        nextFree = new int[0][];
+        chunkGenerations = new int[0];
+        firstFree = -1;
+        idBound = 0;
+        size = 0;
+        levels = newArrayList();
+        field = null;
+        version++;
+        clearLog();
+    }
+
+    private void clearLog() {
+        logStart = version;
+        logSize = 0;
+        logIds = new int[16];
+        logX = new float[16];
+        logY = new float[16];
+        logZ = new float[16];
+        logRadii = new float[16];
+        logAdded = new boolean[16];
+    }
+
+    private void log(int id, boolean added) {
+        if (logSize == MAX_LOG) {
+            int dropped = MAX_LOG / 2;
+            System.arraycopy(logIds, dropped, logIds, 0, logSize - dropped);
+            System.arraycopy(logX, dropped, logX, 0, logSize - dropped);
+            System.arraycopy(logY, dropped, logY, 0, logSize - dropped);
+            System.arraycopy(logZ, dropped, logZ, 0, logSize - dropped);
+            System.arraycopy(logRadii, dropped, logRadii, 0, logSize - dropped);
+            System.arraycopy(logAdded, dropped, logAdded, 0, logSize - dropped);
+            logStart += dropped;
+            logSize -= dropped;
+        } else if (logSize == logIds.length) {
+            logIds = Arrays.copyOf(logIds, 2 * logSize);
+            logX = Arrays.copyOf(logX, 2 * logSize);
+            logY = Arrays.copyOf(logY, 2 * logSize);
+            logZ = Arrays.copyOf(logZ, 2 * logSize);
+            logRadii = Arrays.copyOf(logRadii, 2 * logSize);
+            logAdded = Arrays.copyOf(logAdded, 2 * logSize);
+        }
+        logIds[logSize] = id;
+        logX[logSize] = x(id);
+        logY[logSize] = y(id);
+        logZ[logSize] = z(id);
+        logRadii[logSize] = radius(id);
+        logAdded[logSize] = added;
+        logSize++;
+        version++;
+    }
+
+    private void addChunk() {
+        int chunks = x.length;
+        x = Arrays.copyOf(x, chunks + 1);
+        y = Arrays.copyOf(y, chunks + 1);
+        z = Arrays.copyOf(z, chunks + 1);
+        radii = Arrays.copyOf(radii, chunks + 1);
+        nextFree = Arrays.copyOf(nextFree, chunks + 1);
+        chunkGenerations = Arrays.copyOf(chunkGenerations, chunks + 1);
+        x[chunks] = new float[CHUNK];
+        y[chunks] = new float[CHUNK];
+        z[chunks] = new float[CHUNK];
+        radii[chunks] = new float[CHUNK];
+        nextFree[chunks] = new int[CHUNK];
+        chunkGenerations[chunks] = generation;
     }
 
     /**
-     * Shoot a ball along the ray and pack it into the set.
+     * Copy the chunk before changing it, if a snapshot shares it.
      */
-    Vec3 rayPack(final Line3 ray) {
+    private void own(int chunk) {
+        if (chunkGenerations[chunk] != generation) {
+            x[chunk] = x[chunk].clone();
+            y[chunk] = y[chunk].clone();
+            z[chunk] = z[chunk].clone();
+            radii[chunk] = radii[chunk].clone();
+            nextFree[chunk] = nextFree[chunk].clone();
+            chunkGenerations[chunk] = generation;
+        }
+    }
 
-        final V c1 = raySearch(ray);
-        if (c1 == null || distance(c1, ray.a()) < 4 * radius) {
-            return null;
+    /**
+     * The distance field of the balls, on the grid that SurfaceNets samples.
+     * It is built on the first call and updated by every later add and remove.
+     */
+    public DistanceField distanceField() {
+        if (field == null) {
+            field = new DistanceField(radius, radius * SurfaceNets.cellScale);
+            for (Sphere ball : spheres()) {
+                field.add(ball.center(), ball.radius());
+            }
         }
+        return field;
+    }
 
-        final List<V> closeBalls = newArrayList(
-            FluentIterable.from(balls)
-                .filter(new Predicate<V>() {
-                    public boolean apply(V ball) {
-                        float d = distance(c1, ball);
-                        return d > 0.1 && d < radius * 8;
+    /**
+     * Whether this set keeps a distance field, or for a snapshot, whether it has one.
+     */
+    public boolean hasDistanceField() {
+        return field != null;
+    }
+
+    /**
+     * Keep a field sampled from the snapshot of the given version, bringing it up to date with
+     * the changes made since, so that it can be sampled without holding whatever guards this set.
+     * Does nothing if this set has a field already, or no longer keeps those changes.
+     */
+    public void setDistanceField(DistanceField field, long version) {
+        checkState(!frozen, "a snapshot cannot change");
+        Changes changes = changesSince(version);
+        if (this.field != null || changes == null) {
+            return;
+        }
+        for (Sphere ball : changes.removed) {
+            field.remove(ball.center(), ball.radius());
+        }
+        for (Sphere ball : changes.added) {
+            field.add(ball.center(), ball.radius());
+        }
+        this.field = field;
+    }
+
+    /**
+     * The balls of one size, by cell. Level L holds the balls bigger than radius * 2 ^ (L - 1) and
+     * no bigger than radius * 2 ^ L, with level 0 holding every smaller one too, so that a ball is
+     * never bigger than the cells it is indexed in nor much smaller than them.
+     */
+    private static final class Level {
+
+        /** The biggest ball the level holds. */
+        final float maxRadius;
+
+        final float cellSize;
+
+        /** The ids of the balls in each cell, preceded by their count. */
+        final LongMap<int[]> cells = new LongMap<int[]>();
+
+        /** The range of cells that have held balls, which removals do not shrink. */
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+
+        Level(float maxRadius) {
+            this.maxRadius = maxRadius;
+            this.cellSize = CELL_RADII * maxRadius;
+        }
+
+        int cell(float coordinate) {
+            return (int) Math.floor(coordinate / cellSize);
+        }
+
+    }
+
+    /**
+     * The index of balls by level, built here for a snapshot the first time it is searched.
+     */
+    private List<Level> levels() {
+        if (levels == null) {
+            levels = newArrayList();
+            for (int id = 0; id < idBound; id++) {
+                if (contains(id)) {
+                    addToCell(id);
+                }
+            }
+        }
+        return levels;
+    }
+
+    private Level level(float ballRadius) {
+        int level = 0;
+        for (float max = radius; ballRadius > max; max *= 2) {
+            level++;
+        }
+        while (levels.size() <= level) {
+            levels.add(new Level(radius * (1 << levels.size())));
+        }
+        return levels.get(level);
+    }
+
+    private void addToCell(int id) {
+        Level level = level(radius(id));
+        int cx = level.cell(x(id)), cy = level.cell(y(id)), cz = level.cell(z(id));
+        level.minX = Math.min(level.minX, cx);
+        level.minY = Math.min(level.minY, cy);
+        level.minZ = Math.min(level.minZ, cz);
+        level.maxX = Math.max(level.maxX, cx);
+        level.maxY = Math.max(level.maxY, cy);
+        level.maxZ = Math.max(level.maxZ, cz);
+        long key = SpatialHash.key(cx, cy, cz);
+        int[] cell = level.cells.get(key);
+        if (cell == null) {
+            cell = new int[4];
+            level.cells.put(key, cell);
+        } else if (cell[0] + 1 == cell.length) {
+            cell = Arrays.copyOf(cell, 2 * cell.length);
+            level.cells.put(key, cell);
+        }
+        cell[++cell[0]] = id;
+    }
+
+    private void removeFromCell(int id) {
+        Level level = level(radius(id));
+        long key = SpatialHash.key(level.cell(x(id)), level.cell(y(id)), level.cell(z(id)));
+        int[] cell = level.cells.get(key);
+        for (int i = 1; i <= cell[0]; i++) {
+            if (cell[i] == id) {
+                cell[i] = cell[cell[0]--];
+                break;
+            }
+        }
+        if (cell[0] == 0) {
+            level.cells.remove(key);
+        }
+    }
+
+    /**
+     * The ids of the balls whose surfaces come closer than the distance to the point.
+     */
+    int[] within(IsVec3 center, float distance) {
+        Vec3 c = center.asVec3();
+        int[] found = new int[16];
+        int count = 0;
+        for (Level level : levels()) {
+            float reach = distance + level.maxRadius;
+            int x0 = level.cell(c.x() - reach), x1 = level.cell(c.x() + reach);
+            int y0 = level.cell(c.y() - reach), y1 = level.cell(c.y() + reach);
+            int z0 = level.cell(c.z() - reach), z1 = level.cell(c.z() + reach);
+            for (int cx = x0; cx <= x1; cx++) {
+                for (int cy = y0; cy <= y1; cy++) {
+                    for (int cz = z0; cz <= z1; cz++) {
+                        int[] cell = level.cells.get(SpatialHash.key(cx, cy, cz));
+                        if (cell == null) {
+                            continue;
+                        }
+                        for (int i = 1; i <= cell[0]; i++) {
+                            int id = cell[i];
+                            float dx = x(id) - c.x(), dy = y(id) - c.y(), dz = z(id) - c.z();
+                            float limit = distance + radius(id);
+                            if (dx * dx + dy * dy + dz * dz < limit * limit) {
+                                if (count == found.length) {
+                                    found = Arrays.copyOf(found, 2 * count);
+                                }
+                                found[count++] = id;
+                            }
+                        }
                     }
-                })
-        );
+                }
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Find the first ball the ray hits, or -1 if it hits none. A ball the ray starts inside
+     * is hit before any other, the one entered farthest back first.
+     *
+     * Each level's cells the ray crosses are visited from front to back, stopping once they
+     * are farther away than the nearest hit, so only the balls near its path are looked at.
+     */
+    int raySearch(Line3 ray) {
+        if (size == 0) {
+            return -1;
+        }
+        Vec3 a = ray.a(), dir = ray.ab().unit();
+        float[] origin = { a.x(), a.y(), a.z() }, d = { dir.x(), dir.y(), dir.z() };
+        int best = -1;
+        float bestDistance = Float.POSITIVE_INFINITY;
 
-        final Vec3 ball1 = c1.asVec3().add(ray.ab().mag(-2 * radius));
+        for (Level level : levels()) {
+            if (level.cells.isEmpty()) {
+                continue;
+            }
+            float cellSize = level.cellSize;
+            int[] min = { level.minX - 1, level.minY - 1, level.minZ - 1 };
+            int[] max = { level.maxX + 1, level.maxY + 1, level.maxZ + 1 };
+
+            // Clip the ray to the cells that have neighbors with balls.
+            float t = 0, end = Float.POSITIVE_INFINITY;
+            for (int axis = 0; axis < 3; axis++) {
+                float low = min[axis] * cellSize, high = (max[axis] + 1) * cellSize;
+                if (d[axis] == 0) {
+                    if (origin[axis] < low || origin[axis] >= high) {
+                        end = Float.NEGATIVE_INFINITY;
+                    }
+                    continue;
+                }
+                float t0 = (low - origin[axis]) / d[axis], t1 = (high - origin[axis]) / d[axis];
+                t = Math.max(t, Math.min(t0, t1));
+                end = Math.min(end, Math.max(t0, t1));
+            }
 
-        final Line3 axis1 = pointAndStep(c1, ray.ab().orthog());
+            int[] cell = new int[3], step = new int[3];
+            float[] next = new float[3], delta = new float[3];
+            for (int axis = 0; axis < 3; axis++) {
+                cell[axis] = level.cell(origin[axis] + d[axis] * t);
+                step[axis] = d[axis] > 0 ? 1 : -1;
+                next[axis] = d[axis] == 0 ? Float.POSITIVE_INFINITY
+                    : ((cell[axis] + (d[axis] > 0 ? 1 : 0)) * cellSize - origin[axis]) / d[axis];
+                delta[axis] = d[axis] == 0 ? Float.POSITIVE_INFINITY : cellSize / Math.abs(d[axis]);
+            }
 
-        Object[] ballAndC2 = Approximation.samplePointsAroundLine(axis1, ball1)
-            .transformAndConcat(new Function<Vec3, Iterable<Object[]>>() {
-                public Iterable<Object[]> apply(final Vec3 ball2) {
-                    return FluentIterable
-                        .from(closeBalls)
-                        .filter(new Predicate<V>() {
-                            public boolean apply(V closeBall) {
-                                return distance(ball2, closeBall) < 2 * radius + 1;
+            // Where the ray enters a ball it is within a cell of the ball's center, so the ball
+            // is in a cell next to the one the ray is crossing there.
+            while (t <= end && t <= Math.max(bestDistance, 0)) {
+                for (int cx = cell[0] - 1; cx <= cell[0] + 1; cx++) {
+                    for (int cy = cell[1] - 1; cy <= cell[1] + 1; cy++) {
+                        for (int cz = cell[2] - 1; cz <= cell[2] + 1; cz++) {
+                            int[] ids = level.cells.get(SpatialHash.key(cx, cy, cz));
+                            if (ids == null) {
+                                continue;
                             }
-                        })
-                        .transform(new Function<V, Object[]>() {
-                            public Object[] apply(V closeBall) {
-                                return new Object[]{ ball2, closeBall };
+                            for (int i = 1; i <= ids[0]; i++) {
+                                int id = ids[i];
+                                float entry = entry(id, origin, d);
+                                if (entry < bestDistance) {
+                                    best = id;
+                                    bestDistance = entry;
+                                }
                             }
-                        });
+                        }
+                    }
                 }
-            })
-            .first()
-            .orNull();
-
-        final Vec3 ball2;
-        V c2;
-        if (ballAndC2 != null) {
-            ball2 = (Vec3) ballAndC2[0];
-            c2 = (V) ballAndC2[1];
-        } else {
-            ball2 = ball1;
-            c2 = null;
+                int axis = next[0] < next[1] ? (next[0] < next[2] ? 0 : 2) : (next[1] < next[2] ? 1 : 2);
+                t = next[axis];
+                next[axis] += delta[axis];
+                cell[axis] += step[axis];
+            }
         }
+        return best;
+    }
 
-        Vec3 ball3;
-        if (c2 == null) {
-            ball3 = ball2;
+    /**
+     * How far along the ray it enters the ball, negative if it starts inside,
+     * or infinity if it misses.
+     */
+    private float entry(int id, float[] origin, float[] d) {
+        float px = x(id) - origin[0], py = y(id) - origin[1], pz = z(id) - origin[2];
+        float squared = px * px + py * py + pz * pz;
+        float along = px * d[0] + py * d[1] + pz * d[2];
+        float r = radius(id), inside = r * r - (squared - along * along);
+        if (inside <= 0 || (along <= 0 && squared >= r * r)) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return along - (float) Math.sqrt(inside);
+    }
+
+    /**
+     * Shoot a ball of the default radius along each ray.
+     */
+    List<Vec3> rayPack(List<Line3> rays) throws InterruptedException {
+        return rayPack(rays, radius);
+    }
+
+    /**
+     * Shoot a ball along each ray, placing them all in parallel against the balls as they are
+     * now. Where two placements overlap, the one from the earlier ray is kept, so the result
+     * depends only on the rays and their order.
+     */
+    List<Vec3> rayPack(List<Line3> rays, final float ballRadius) throws InterruptedException {
+        levels();
+        final Vec3[] placed = new Vec3[rays.size()];
+        if (placed.length < MIN_PARALLEL_RAYS) {
+            for (int i = 0; i < placed.length; i++) {
+                placed[i] = rayPack(rays.get(i), ballRadius);
+            }
         } else {
-            closeBalls.remove(c2);
-            final Line3 axis2 = aToB(c1, c2);
-            ball3 = Approximation.samplePointsAroundLine(axis2, ball2)
-                .filter(new Predicate<Vec3>() {
-                    public boolean apply(final Vec3 ball3) {
-                        return FluentIterable
-                            .from(closeBalls)
-                            .anyMatch(new Predicate<V>() {
-                                public boolean apply(V closeBall) {
-                                    return distance(ball3, closeBall) < 2 * radius + 1;
-                                }
-                            });
+            List<Callable<Object>> tasks = newArrayList();
+            for (int i = 0; i < placed.length; i++) {
+                final int index = i;
+                final Line3 ray = rays.get(i);
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        placed[index] = rayPack(ray, ballRadius);
+                        return null;
                     }
-                })
-                .first()
-                .or(ball2);
+                });
+            }
+            Tasks.invokeAll(pool, tasks);
+        }
+
+        List<Vec3> kept = newArrayList();
+        for (Vec3 ball : placed) {
+            if (ball == null) {
+                continue;
+            }
+            boolean overlaps = false;
+            for (Vec3 other : kept) {
+                if (distance(ball, other) < 2 * ballRadius) {
+                    overlaps = true;
+                    break;
+                }
+            }
+            if (!overlaps) {
+                kept.add(ball);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Shoot a ball of the default radius along the ray.
+     */
+    Vec3 rayPack(Line3 ray) {
+        return rayPack(ray, radius);
+    }
+
+    /**
+     * Shoot a ball along the ray and pack it into the set: it stops against the first ball
+     * it hits, rolls around that one until it touches a second, then rolls around both until
+     * it touches a third.
+     */
+    Vec3 rayPack(Line3 ray, float ballRadius) {
+
+        int id1 = raySearch(ray);
+        if (id1 == -1) {
+            return null;
+        }
+        Vec3 c1 = center(id1);
+        float r1 = radius(id1);
+        if (distance(c1, ray.a()) < r1 + 3 * ballRadius) {
+            return null;
+        }
+
+        // The ball stays r1 + ballRadius from c1, so no ball coming farther than a diameter past that can touch it.
+        int[] closeBalls = within(c1, r1 + 2 * ballRadius);
+        int count = 0;
+        for (int id : closeBalls) {
+            if (distance(c1, center(id)) > 0.1) {
+                closeBalls[count++] = id;
+            }
+        }
+        closeBalls = Arrays.copyOf(closeBalls, count);
+
+        Vec3 ball1 = c1.add(ray.ab().mag(-(r1 + ballRadius)));
+
+        Object[] ballAndC2 = roll(pointAndStep(c1, ray.ab().orthog()), ball1, ballRadius, closeBalls, -1);
+        if (ballAndC2 == null) {
+            return ball1;
         }
+        Vec3 ball2 = (Vec3) ballAndC2[0];
+        int id2 = (Integer) ballAndC2[1];
 
-        return ball3;
+        Object[] ballAndC3 = roll(aToB(c1, center(id2)), ball2, ballRadius, closeBalls, id2);
+        return ballAndC3 == null ? ball2 : (Vec3) ballAndC3[0];
+    }
+
+    /**
+     * Roll a ball around the axis from the start, and find where it first touches one of the
+     * others: the first point on its circle that is the sum of their radii from another center.
+     *
+     * @return the new center and the id of the ball it touches, or null if it rolls all the way around
+     */
+    private Object[] roll(Line3 axis, Vec3 start, float ballRadius, int[] others, int excluded) {
+
+        Vec3 w = axis.ab().unit();
+        Vec3 center = axis.a().add(w.mult(start.sub(axis.a()).dot(w)));
+        Vec3 offset = start.sub(center);
+        float circleRadius = offset.mag();
+        if (circleRadius < 0.001) {
+            return null;
+        }
+        Vec3 e1 = offset.div(circleRadius), e2 = w.cross(e1);
+
+        double firstAngle = Double.POSITIVE_INFINITY;
+        int first = -1;
+        for (int other : others) {
+            if (other == excluded) {
+                continue;
+            }
+            double angle;
+            Vec3 c = center(other);
+            float contact = ballRadius + radius(other);
+            if (distance(start, c) < contact - 0.001) {
+                angle = 0;
+            } else {
+                // The distance to the other center is least at angle phi, and is the contact distance at phi +/- alpha.
+                Vec3 d = c.sub(center);
+                double a = e1.dot(d), b = e2.dot(d), r = Math.sqrt(a * a + b * b);
+                double cos = (circleRadius * circleRadius + d.dot(d) - contact * contact) / (2 * circleRadius * r);
+                if (r < 0.001 || cos > 1) {
+                    continue;
+                }
+                angle = Math.atan2(b, a) - Math.acos(Math.max(cos, -1));
+                angle -= 2 * Math.PI * Math.floor(angle / (2 * Math.PI));
+            }
+            if (angle < firstAngle) {
+                firstAngle = angle;
+                first = other;
+            }
+        }
+        if (first == -1) {
+            return null;
+        }
+        Vec3 touching = center
+            .add(e1.mult((float) (circleRadius * Math.cos(firstAngle))))
+            .add(e2.mult((float) (circleRadius * Math.sin(firstAngle))));
+        return new Object[]{ touching, first };
     }
 
 }
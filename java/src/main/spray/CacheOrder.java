@@ -0,0 +1,196 @@
+package spray;
+
+import java.util.Arrays;
+
+/**
+ * Reorders a mesh for the caches that draw it: triangles in the order of Tom Forsyth's
+ * linear-speed vertex cache optimization, so that consecutive triangles mostly reuse
+ * vertices the GPU has just transformed, and vertices numbered by first use, so that
+ * walking the triangles walks the vertex arrays from front to back.
+ */
+public final class CacheOrder {
+
+    /** The size of the simulated least-recently-used cache that triangles are scored against. */
+    static final int CACHE_SIZE = 32;
+
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+
+    private CacheOrder() { }
+
+    /**
+     * The same triangles, reordered for the vertex cache, with the vertices renumbered in the
+     * order the triangles first use them.
+     */
+    public static IndexedMesh reorder(IndexedMesh mesh) {
+        int[] indices = reorderTriangles(mesh.indices, mesh.vertexCount());
+
+        // Normals only move with their vertices, so any already computed are carried over.
+        float[] normals = mesh.hasNormals() ? mesh.normals() : null;
+        int[] numbers = new int[mesh.vertexCount()];
+        Arrays.fill(numbers, -1);
+        float[] positions = new float[mesh.positions.length];
+        float[] newNormals = normals == null ? null : new float[normals.length];
+        int vertexCount = 0;
+        for (int i = 0; i < indices.length; i++) {
+            int v = indices[i];
+            if (numbers[v] == -1) {
+                numbers[v] = vertexCount;
+                System.arraycopy(mesh.positions, 3 * v, positions, 3 * vertexCount, 3);
+                if (normals != null) {
+                    System.arraycopy(normals, 3 * v, newNormals, 3 * vertexCount, 3);
+                }
+                vertexCount++;
+            }
+            indices[i] = numbers[v];
+        }
+        positions = Arrays.copyOf(positions, vertexCount * 3);
+        return normals == null
+            ? new IndexedMesh(positions, indices)
+            : new IndexedMesh(positions, indices, Arrays.copyOf(newNormals, vertexCount * 3));
+    }
+
+    /**
+     * The average number of vertices transformed per triangle drawn, through a first-in
+     * first-out cache of the given size like those of most GPUs. It is 3 with no reuse,
+     * and approaches 0.5 for a large regular grid drawn in the best order.
+     */
+    public static float missRatio(IndexedMesh mesh, int cacheSize) {
+        if (mesh.triangleCount() == 0) {
+            return 0;
+        }
+        // When each vertex last entered the cache, counted in misses; the cache holds the latest cacheSize.
+        int[] insertedAt = new int[mesh.vertexCount()];
+        Arrays.fill(insertedAt, -cacheSize - 1);
+        int misses = 0;
+        for (int v : mesh.indices) {
+            if (misses - insertedAt[v] > cacheSize) {
+                insertedAt[v] = misses++;
+            }
+        }
+        return (float) misses / mesh.triangleCount();
+    }
+
+    private static int[] reorderTriangles(int[] indices, int vertexCount) {
+
+        int triangleCount = indices.length / 3;
+
+        // The triangles around each vertex; those not yet drawn are kept first.
+        int[] firstTriangle = new int[vertexCount + 1];
+        for (int v : indices) {
+            firstTriangle[v + 1]++;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            firstTriangle[v + 1] += firstTriangle[v];
+        }
+        int[] remaining = new int[vertexCount];
+        int[] around = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            int v = indices[i];
+            around[firstTriangle[v] + remaining[v]++] = i / 3;
+        }
+
+        float[] vertexScores = new float[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            vertexScores[v] = score(-1, remaining[v]);
+        }
+        float[] triangleScores = new float[triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            triangleScores[t] = vertexScores[indices[3 * t]] + vertexScores[indices[3 * t + 1]]
+                + vertexScores[indices[3 * t + 2]];
+        }
+        boolean[] drawn = new boolean[triangleCount];
+
+        int[] cache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int[] newCache = new int[CACHE_SIZE + 3];
+
+        int[] result = new int[indices.length];
+        int best = -1;
+        int cursor = 0;
+        for (int n = 0; n < triangleCount; n++) {
+
+            // When nothing in the cache has triangles left, start again from the next undrawn triangle.
+            if (best == -1) {
+                while (drawn[cursor]) {
+                    cursor++;
+                }
+                best = cursor;
+            }
+
+            int t = best;
+            drawn[t] = true;
+            System.arraycopy(indices, 3 * t, result, 3 * n, 3);
+
+            // Move the triangle's corners to the front of the cache, and take it off their lists.
+            int newCount = 0;
+            for (int k = 0; k < 3; k++) {
+                int v = indices[3 * t + k];
+                newCache[newCount++] = v;
+                int end = firstTriangle[v] + remaining[v];
+                for (int i = firstTriangle[v]; i < end; i++) {
+                    if (around[i] == t) {
+                        around[i] = around[end - 1];
+                        around[end - 1] = t;
+                        break;
+                    }
+                }
+                remaining[v]--;
+            }
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                if (v != indices[3 * t] && v != indices[3 * t + 1] && v != indices[3 * t + 2]) {
+                    newCache[newCount++] = v;
+                }
+            }
+            int[] swap = cache;
+            cache = newCache;
+            newCache = swap;
+            cacheCount = newCount;
+
+            // Rescore everything in the cache, including the vertices just pushed out of it.
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                float delta = score(i < CACHE_SIZE ? i : -1, remaining[v]) - vertexScores[v];
+                vertexScores[v] += delta;
+                for (int j = firstTriangle[v]; j < firstTriangle[v] + remaining[v]; j++) {
+                    triangleScores[around[j]] += delta;
+                }
+            }
+            best = -1;
+            float bestScore = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < cacheCount && i < CACHE_SIZE; i++) {
+                int v = cache[i];
+                for (int j = firstTriangle[v]; j < firstTriangle[v] + remaining[v]; j++) {
+                    if (triangleScores[around[j]] > bestScore) {
+                        bestScore = triangleScores[around[j]];
+                        best = around[j];
+                    }
+                }
+            }
+            if (cacheCount > CACHE_SIZE) {
+                cacheCount = CACHE_SIZE;
+            }
+        }
+        return result;
+    }
+
+    private static float score(int cachePosition, int remaining) {
+        if (remaining == 0) {
+            return -1;
+        }
+        float score = 0;
+        if (cachePosition >= 0) {
+            if (cachePosition < 3) {
+                score = LAST_TRIANGLE_SCORE;
+            } else {
+                float scale = 1f / (CACHE_SIZE - 3);
+                score = (float) Math.pow(1 - (cachePosition - 3) * scale, CACHE_DECAY_POWER);
+            }
+        }
+        return score + VALENCE_BOOST_SCALE * (float) Math.pow(remaining, -VALENCE_BOOST_POWER);
+    }
+
+}
@@ -0,0 +1,353 @@
+package spray;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import spray.Geometry.IsVec3;
+import spray.Geometry.Sphere;
+import spray.Geometry.Vec3;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
+import static spray.Geometry.sphere;
+import static spray.Geometry.xyz;
+
+/**
+ * The signed distance to the surface of a union of balls, sampled on a grid near that surface.
+ *
+ * Samples are stored sparsely in cubic chunks, which are only allocated near a ball.
+ * Adding or removing a ball only touches the samples within its reach.
+ *
+ * Snapshots share chunks with the field until it changes them, so taking one costs a
+ * pointer per chunk rather than a copy of the samples.
+ */
+public final class DistanceField {
+
+    /** Chunks are 2 ^ CHUNK_SHIFT grid points along each axis. */
+    static final int CHUNK_SHIFT = 4;
+    static final int CHUNK = 1 << CHUNK_SHIFT;
+    static final int MASK = CHUNK - 1;
+
+    /** Distances are clamped to this many grid steps outside the balls, which is the field's value far from any. */
+    static final float BAND = 2;
+
+    private final float step;
+
+    /** The radius of balls added without one. */
+    private final float ballRadius;
+
+    /** The radius of the biggest ball added so far, in grid steps, which removals do not shrink. */
+    private float maxRadius;
+
+    private final LongMap<Chunk> chunks;
+
+    /** The balls, or null in a snapshot, which cannot change. */
+    private final SpatialHash<Sphere> balls;
+
+    /** How many snapshots have been taken; chunks from before the latest are shared with it. */
+    private int generation;
+
+    public DistanceField(float ballRadius, float step) {
+        this.step = step;
+        this.ballRadius = ballRadius;
+        chunks = new LongMap<Chunk>();
+        balls = new SpatialHash<Sphere>(2 * (ballRadius + BAND * step));
+    }
+
+    private DistanceField(DistanceField field) {
+        step = field.step;
+        ballRadius = field.ballRadius;
+        maxRadius = field.maxRadius;
+        chunks = new LongMap<Chunk>(field.chunks.size());
+        for (Chunk chunk : field.chunks.values()) {
+            chunks.put(chunk.key(), chunk);
+        }
+        balls = null;
+    }
+
+    /**
+     * The field of the balls, sampling each chunk on a thread of its own.
+     */
+    public static DistanceField of(Balls balls, float step) throws InterruptedException {
+
+        DistanceField field = new DistanceField(balls.radius, step);
+        final List<Chunk> created = newArrayList();
+        final LongMap<List<Sphere>> reaching = new LongMap<List<Sphere>>();
+        for (Sphere ball : balls.spheres()) {
+            field.balls.add(ball);
+            Sphere c = field.toGrid(ball);
+            field.maxRadius = Math.max(field.maxRadius, c.radius());
+            for (Chunk chunk : field.chunksNear(c, true)) {
+                List<Sphere> list = reaching.get(chunk.key());
+                if (list == null) {
+                    created.add(chunk);
+                    list = newArrayList();
+                    reaching.put(chunk.key(), list);
+                }
+                list.add(c);
+            }
+        }
+
+        List<Callable<Object>> tasks = newArrayList();
+        for (final Chunk chunk : created) {
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for (Sphere c : reaching.get(chunk.key())) {
+                        chunk.lower(c);
+                    }
+                    return null;
+                }
+            });
+        }
+        Tasks.invokeAll(Mesh.pool, tasks);
+
+        return field;
+    }
+
+    /**
+     * An unchangeable copy of the field as it is now. It shares chunks with this field, which
+     * copies each one the next time it changes it.
+     */
+    public DistanceField snapshot() {
+        DistanceField snapshot = new DistanceField(this);
+        generation++;
+        return snapshot;
+    }
+
+    /**
+     * The spacing of the grid.
+     */
+    public float step() {
+        return step;
+    }
+
+    /**
+     * Add a ball of the default radius.
+     */
+    public void add(IsVec3 center) {
+        add(center, ballRadius);
+    }
+
+    public void add(IsVec3 center, float radius) {
+        checkState(balls != null, "a snapshot cannot change");
+        Sphere ball = sphere(center, radius);
+        balls.add(ball);
+        Sphere c = toGrid(ball);
+        maxRadius = Math.max(maxRadius, c.radius());
+        for (Chunk chunk : chunksNear(c, true)) {
+            chunk.lower(c);
+        }
+    }
+
+    /**
+     * Remove a ball of the default radius.
+     */
+    public void remove(IsVec3 center) {
+        remove(center, ballRadius);
+    }
+
+    public void remove(IsVec3 center, float radius) {
+        checkState(balls != null, "a snapshot cannot change");
+        Sphere ball = sphere(center, radius);
+        if (!balls.remove(ball)) {
+            return;
+        }
+        // Resample within the ball's reach from the balls that reach the same samples.
+        Sphere c = toGrid(ball);
+        List<Sphere> neighbors = newArrayList();
+        for (Sphere neighbor : balls.within(ball, (c.radius() + maxRadius + 2 * BAND) * step)) {
+            neighbors.add(toGrid(neighbor));
+        }
+        for (Chunk chunk : chunksNear(c, false)) {
+            chunk.raise(c, neighbors);
+            if (chunk.isEmpty()) {
+                chunks.remove(chunk.key());
+            }
+        }
+    }
+
+    /**
+     * The distance from the point to the surface, negative inside the balls, interpolated between samples.
+     * Points farther outside than the band around the surface all get the band's width.
+     */
+    public float distance(IsVec3 point) {
+        Vec3 p = toGrid(point);
+        int x = (int) Math.floor(p.x()), y = (int) Math.floor(p.y()), z = (int) Math.floor(p.z());
+        float fx = p.x() - x, fy = p.y() - y, fz = p.z() - z;
+        float d = 0;
+        for (int corner = 0; corner < 8; corner++) {
+            int dx = corner & 1, dy = corner >> 1 & 1, dz = corner >> 2;
+            float weight = (dx == 0 ? 1 - fx : fx) * (dy == 0 ? 1 - fy : fy) * (dz == 0 ? 1 - fz : fz);
+            d += weight * value(x + dx, y + dy, z + dz);
+        }
+        return d * step;
+    }
+
+    /**
+     * The sample at a grid point, in grid steps.
+     */
+    float value(int x, int y, int z) {
+        Chunk chunk = chunks.get(SpatialHash.key(x >> CHUNK_SHIFT, y >> CHUNK_SHIFT, z >> CHUNK_SHIFT));
+        return chunk == null ? BAND : chunk.values[index(x & MASK, y & MASK, z & MASK)];
+    }
+
+    Chunk chunk(int x, int y, int z) {
+        return chunks.get(SpatialHash.key(x, y, z));
+    }
+
+    Iterable<Chunk> chunks() {
+        return chunks.values();
+    }
+
+    static int index(int x, int y, int z) {
+        return (z << CHUNK_SHIFT | y) << CHUNK_SHIFT | x;
+    }
+
+    private Vec3 toGrid(IsVec3 point) {
+        return point.asVec3().div(step);
+    }
+
+    private Sphere toGrid(Sphere ball) {
+        return sphere(toGrid(ball.center()), ball.radius() / step);
+    }
+
+    /**
+     * The chunks holding samples within the reach of the ball, in grid steps,
+     * ready to be changed: any shared with a snapshot are replaced by copies.
+     */
+    private List<Chunk> chunksNear(Sphere ball, boolean create) {
+        List<Chunk> near = newArrayList();
+        Vec3 c = ball.center();
+        float reach = ball.radius() + BAND;
+        int x0 = chunk(c.x() - reach), x1 = chunk(c.x() + reach);
+        int y0 = chunk(c.y() - reach), y1 = chunk(c.y() + reach);
+        int z0 = chunk(c.z() - reach), z1 = chunk(c.z() + reach);
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                for (int z = z0; z <= z1; z++) {
+                    long key = SpatialHash.key(x, y, z);
+                    Chunk chunk = chunks.get(key);
+                    if (chunk == null && create) {
+                        chunk = new Chunk(x, y, z, generation);
+                        chunks.put(key, chunk);
+                    } else if (chunk != null && chunk.generation != generation) {
+                        chunk = new Chunk(chunk, generation);
+                        chunks.put(key, chunk);
+                    }
+                    if (chunk != null) {
+                        near.add(chunk);
+                    }
+                }
+            }
+        }
+        return near;
+    }
+
+    private static int chunk(float coordinate) {
+        return (int) Math.floor(coordinate) >> CHUNK_SHIFT;
+    }
+
+    static final class Chunk {
+
+        /** Position of the chunk, in chunks. */
+        final int x, y, z;
+
+        /** The distance to the nearest ball at each grid point, in grid steps. */
+        final float[] values;
+
+        /** The field's generation when this chunk was made; a field only changes chunks of its own generation. */
+        final int generation;
+
+        Chunk(int x, int y, int z, int generation) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.generation = generation;
+            values = new float[CHUNK * CHUNK * CHUNK];
+            Arrays.fill(values, BAND);
+        }
+
+        Chunk(Chunk chunk, int generation) {
+            x = chunk.x;
+            y = chunk.y;
+            z = chunk.z;
+            this.generation = generation;
+            values = chunk.values.clone();
+        }
+
+        long key() {
+            return SpatialHash.key(x, y, z);
+        }
+
+        /**
+         * Take the ball into account at every sample it reaches.
+         */
+        void lower(Sphere ball) {
+            Vec3 c = ball.center();
+            float radius = ball.radius(), reach = radius + BAND;
+            int ox = x << CHUNK_SHIFT, oy = y << CHUNK_SHIFT, oz = z << CHUNK_SHIFT;
+            int x0 = Math.max(0, (int) Math.ceil(c.x() - reach) - ox);
+            int x1 = Math.min(MASK, (int) Math.floor(c.x() + reach) - ox);
+            int y0 = Math.max(0, (int) Math.ceil(c.y() - reach) - oy);
+            int y1 = Math.min(MASK, (int) Math.floor(c.y() + reach) - oy);
+            int z0 = Math.max(0, (int) Math.ceil(c.z() - reach) - oz);
+            int z1 = Math.min(MASK, (int) Math.floor(c.z() + reach) - oz);
+            for (int k = z0; k <= z1; k++) {
+                float dz = oz + k - c.z();
+                for (int j = y0; j <= y1; j++) {
+                    float dy = oy + j - c.y();
+                    for (int i = x0; i <= x1; i++) {
+                        float dx = ox + i - c.x();
+                        float d = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - radius;
+                        int n = index(i, j, k);
+                        if (d < values[n]) {
+                            values[n] = d;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Forget the ball, recomputing the samples it reached from the neighbors.
+         */
+        void raise(Sphere ball, List<Sphere> neighbors) {
+            Vec3 c = ball.center();
+            float reach = ball.radius() + BAND;
+            int ox = x << CHUNK_SHIFT, oy = y << CHUNK_SHIFT, oz = z << CHUNK_SHIFT;
+            int x0 = Math.max(0, (int) Math.ceil(c.x() - reach) - ox);
+            int x1 = Math.min(MASK, (int) Math.floor(c.x() + reach) - ox);
+            int y0 = Math.max(0, (int) Math.ceil(c.y() - reach) - oy);
+            int y1 = Math.min(MASK, (int) Math.floor(c.y() + reach) - oy);
+            int z0 = Math.max(0, (int) Math.ceil(c.z() - reach) - oz);
+            int z1 = Math.min(MASK, (int) Math.floor(c.z() + reach) - oz);
+            for (int k = z0; k <= z1; k++) {
+                for (int j = y0; j <= y1; j++) {
+                    for (int i = x0; i <= x1; i++) {
+                        Vec3 p = xyz(ox + i, oy + j, oz + k);
+                        if (Geometry.distance(p, c) >= reach) {
+                            continue;
+                        }
+                        float d = BAND;
+                        for (Sphere neighbor : neighbors) {
+                            d = Math.min(d, Geometry.distance(p, neighbor.center()) - neighbor.radius());
+                        }
+                        values[index(i, j, k)] = d;
+                    }
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            for (float value : values) {
+                if (value != BAND) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -976,6 +976,31 @@ public final class Geometry {
         public Vec3 asVec3() {
             return this;
         }
+
+        public boolean equals(Object o) {
+            return sameCoordinates(this, o);
+        }
+
+        public int hashCode() {
+            return coordinateHash(this);
+        }
+    }
+
+    /**
+     * Vectors are equal when their coordinates are, however they were made.
+     */
+    private static boolean sameCoordinates(Vec3 a, Object o) {
+        if (!(o instanceof Vec3)) {
+            return false;
+        }
+        Vec3 b = (Vec3) o;
+        return Float.floatToIntBits(a.x()) == Float.floatToIntBits(b.x())
+            && Float.floatToIntBits(a.y()) == Float.floatToIntBits(b.y())
+            && Float.floatToIntBits(a.z()) == Float.floatToIntBits(b.z());
+    }
+
+    private static int coordinateHash(Vec3 v) {
+        return (Float.floatToIntBits(v.x()) * 31 + Float.floatToIntBits(v.y())) * 31 + Float.floatToIntBits(v.z());
     }
 
     private static class XYZ extends BaseVec3 {
@@ -1201,6 +1226,14 @@ public final class Geometry {
         public Vec3 asVec3() {
             return this;
         }
+
+        public boolean equals(Object o) {
+            return sameCoordinates(this, o);
+        }
+
+        public int hashCode() {
+            return coordinateHash(this);
+        }
     }
 
     private static final Origin3 ORIGIN_3 = new Origin3();
@@ -1573,7 +1606,10 @@ public final class Geometry {
         return c;
     }
 
-    public interface Sphere {
+    /**
+     * Spheres are equal when their centers and radii are, and stand for their centers where a point is wanted.
+     */
+    public interface Sphere extends IsVec3 {
 
         Vec3 center();
 
@@ -1598,6 +1634,22 @@ public final class Geometry {
         public float radius() {
             return radius;
         }
+
+        public Vec3 asVec3() {
+            return center;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Sphere)) {
+                return false;
+            }
+            Sphere that = (Sphere) o;
+            return center.equals(that.center()) && Float.floatToIntBits(radius) == Float.floatToIntBits(that.radius());
+        }
+
+        public int hashCode() {
+            return center.hashCode() * 31 + Float.floatToIntBits(radius);
+        }
     }
 
     public static Sphere sphere(Vec3 center, float radius) {
@@ -1682,6 +1734,42 @@ public final class Geometry {
         return asList(circle(center, ab.ab(), rad));
     }
 
+    /** 0 or 2 points. */
+    public static List<Vec3> intersect(Circle3 circle, Sphere sphere) {
+        // Cut the sphere with the circle's plane, then intersect the two circles within that plane.
+        Vec3 n = circle.normal().unit();
+        Vec3 toSphere = sphere.center().sub(circle.center());
+        float h = toSphere.dot(n);
+        float r = circle.radius(), s = sphere.radius();
+        if (abs(h) > s) {
+            return asList(new Vec3[]{});
+        }
+        float rho = (float) sqrt(s*s - h*h);
+        Vec3 inPlane = toSphere.sub(n.mult(h));
+        float d = inPlane.mag();
+        if (d < EPSILON || d > r + rho || d < abs(r - rho)) {
+            return asList(new Vec3[]{});
+        }
+        float x = (d*d - rho*rho + r*r) / (2 * d);
+        float y = (float) sqrt(max(0, r*r - x*x));
+        Vec3 u = inPlane.div(d);
+        Vec3 base = circle.center().add(u.mult(x));
+        Vec3 offset = n.cross(u).mult(y);
+        return asList(base.add(offset), base.sub(offset));
+    }
+
+    /**
+     * The angle in [0, 2pi) through which rotatePointAroundLine must turn FROM
+     * about the line to bring it into the half-plane containing TO.
+     */
+    public static float angleAroundLine(Line3 line, Vec3 from, Vec3 to) {
+        Vec3 u = line.ab().unit();
+        Vec3 f = from.sub(line.a()), t = to.sub(line.a());
+        float y = u.dot(f.cross(t));
+        float x = f.dot(t) - u.dot(f) * u.dot(t);
+        return mod2pi((float) atan2(y, x));
+    }
+
     public interface IsVec3 {
 
         Vec3 asVec3();
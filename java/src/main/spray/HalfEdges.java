@@ -0,0 +1,111 @@
+package spray;
+
+import java.util.Arrays;
+
+/**
+ * The adjacency of an {@link IndexedMesh}, as half-edges numbered like its index array:
+ * half-edge 3t + k belongs to triangle t and leaves its corner k for corner k + 1, so the
+ * next half-edge around a triangle and the vertex a half-edge leaves are arithmetic, and
+ * only the twins and each vertex's outgoing half-edge are stored.
+ */
+public final class HalfEdges {
+
+    /** The vertex each half-edge leaves; the mesh's own index array. */
+    public final int[] vertex;
+
+    /**
+     * The half-edge going the other way along the same edge, or -1 if the edge is on the
+     * boundary, is shared by more than two triangles, or is shared by two triangles wound
+     * the same way.
+     */
+    public final int[] twin;
+
+    /**
+     * A half-edge leaving each vertex, or -1 for vertices no triangle uses. Where a vertex
+     * has a boundary, it is one with no twin, so that {@link #nextAround} visits every
+     * triangle of the fan.
+     */
+    public final int[] outgoing;
+
+    HalfEdges(int[] indices, int vertexCount) {
+        this.vertex = indices;
+        this.twin = new int[indices.length];
+        this.outgoing = new int[vertexCount];
+        Arrays.fill(twin, -1);
+        Arrays.fill(outgoing, -1);
+
+        // The half-edges of each edge all land in the bucket of its lower vertex.
+        int[] first = new int[vertexCount + 1];
+        for (int h = 0; h < indices.length; h++) {
+            first[Math.min(indices[h], indices[next(h)]) + 1]++;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            first[v + 1] += first[v];
+        }
+        int[] filled = new int[vertexCount];
+        int[] bucket = new int[indices.length];
+        for (int h = 0; h < indices.length; h++) {
+            int v = Math.min(indices[h], indices[next(h)]);
+            bucket[first[v] + filled[v]++] = h;
+        }
+
+        for (int v = 0; v < vertexCount; v++) {
+            for (int i = first[v]; i < first[v + 1]; i++) {
+                int h = bucket[i];
+                int other = Math.max(vertex[h], head(h));
+                int match = -1, uses = 0;
+                for (int j = first[v]; j < first[v + 1]; j++) {
+                    int g = bucket[j];
+                    if (g != h && Math.max(vertex[g], head(g)) == other) {
+                        uses++;
+                        match = g;
+                    }
+                }
+                if (uses == 1 && vertex[match] != vertex[h]) {
+                    twin[h] = match;
+                }
+            }
+        }
+
+        for (int h = 0; h < indices.length; h++) {
+            int v = vertex[h];
+            if (outgoing[v] == -1 || twin[h] == -1) {
+                outgoing[v] = h;
+            }
+        }
+    }
+
+    public int halfEdgeCount() {
+        return vertex.length;
+    }
+
+    public static int next(int h) {
+        return h % 3 == 2 ? h - 2 : h + 1;
+    }
+
+    public static int prev(int h) {
+        return h % 3 == 0 ? h + 2 : h - 1;
+    }
+
+    public static int triangle(int h) {
+        return h / 3;
+    }
+
+    /** The vertex the half-edge points to. */
+    public int head(int h) {
+        return vertex[next(h)];
+    }
+
+    public boolean isBoundary(int h) {
+        return twin[h] == -1;
+    }
+
+    /**
+     * The half-edge leaving the same vertex in the next triangle around it, or -1 at a
+     * boundary. Starting from {@link #outgoing}, this visits the vertex's whole fan.
+     */
+    public int nextAround(int h) {
+        return twin[prev(h)];
+    }
+
+}
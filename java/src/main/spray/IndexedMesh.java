@@ -0,0 +1,182 @@
+package spray;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A triangle mesh flattened into arrays: three coordinates per vertex in
+ * {@link #positions}, and three vertex numbers per triangle in {@link #indices}.
+ *
+ * Triangles are wound like those of Mesh, so (b - a) x (c - a) points into the balls.
+ */
+public final class IndexedMesh {
+
+    public static final IndexedMesh EMPTY = new IndexedMesh(new float[0], new int[0]);
+
+    public final float[] positions;
+
+    public final int[] indices;
+
+    /** Built on first use, like halfEdges, unless given to the constructor. */
+    private volatile float[] normals;
+
+    /** Built on first use; a race only builds it twice. */
+    private volatile HalfEdges halfEdges;
+
+    /** Ranges of triangles or vertices smaller than this are not split between threads. */
+    private static final int GRAIN = 4096;
+
+    public IndexedMesh(float[] positions, int[] indices) {
+        this.positions = positions;
+        this.indices = indices;
+    }
+
+    /**
+     * A mesh whose vertex normals are already known.
+     */
+    IndexedMesh(float[] positions, int[] indices, float[] normals) {
+        this(positions, indices);
+        this.normals = normals;
+    }
+
+    public int vertexCount() {
+        return positions.length / 3;
+    }
+
+    public int triangleCount() {
+        return indices.length / 3;
+    }
+
+    /**
+     * A unit normal for each vertex, pointing out of the balls: the mean of the normals of
+     * the triangles around it, weighted by their areas.
+     */
+    public float[] normals() {
+        float[] n = normals;
+        if (n == null) {
+            n = normals(positions, indices);
+            normals = n;
+        }
+        return n;
+    }
+
+    /**
+     * Whether the normals have been computed, so that copies can carry them over instead of computing them again.
+     */
+    boolean hasNormals() {
+        return normals != null;
+    }
+
+    /**
+     * Which triangles meet at each edge and vertex, for passes that walk the surface.
+     */
+    public HalfEdges halfEdges() {
+        HalfEdges h = halfEdges;
+        if (h == null) {
+            h = new HalfEdges(indices, vertexCount());
+            halfEdges = h;
+        }
+        return h;
+    }
+
+    private static float[] normals(final float[] positions, final int[] indices) {
+
+        final int vertexCount = positions.length / 3;
+        final int triangleCount = indices.length / 3;
+
+        // Each cross product is twice the triangle's area in length, so summing them weights by area.
+        final float[] faceNormals = new float[triangleCount * 3];
+        Mesh.pool.invoke(new Range(0, triangleCount) {
+            void compute(int from, int to) {
+                for (int t = from; t < to; t++) {
+                    int a = 3 * indices[3 * t], b = 3 * indices[3 * t + 1], c = 3 * indices[3 * t + 2];
+                    float abx = positions[b] - positions[a];
+                    float aby = positions[b + 1] - positions[a + 1];
+                    float abz = positions[b + 2] - positions[a + 2];
+                    float acx = positions[c] - positions[a];
+                    float acy = positions[c + 1] - positions[a + 1];
+                    float acz = positions[c + 2] - positions[a + 2];
+                    faceNormals[3 * t] = aby * acz - abz * acy;
+                    faceNormals[3 * t + 1] = abz * acx - abx * acz;
+                    faceNormals[3 * t + 2] = abx * acy - aby * acx;
+                }
+            }
+        });
+
+        // The triangles around each vertex, so that every vertex can be summed on its own.
+        final int[] firstTriangle = new int[vertexCount + 1];
+        for (int index : indices) {
+            firstTriangle[index + 1]++;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            firstTriangle[v + 1] += firstTriangle[v];
+        }
+        final int[] triangles = new int[indices.length];
+        int[] filled = new int[vertexCount];
+        for (int i = 0; i < indices.length; i++) {
+            int v = indices[i];
+            triangles[firstTriangle[v] + filled[v]++] = i / 3;
+        }
+
+        final float[] normals = new float[vertexCount * 3];
+        Mesh.pool.invoke(new Range(0, vertexCount) {
+            void compute(int from, int to) {
+                for (int v = from; v < to; v++) {
+                    float x = 0, y = 0, z = 0;
+                    for (int i = firstTriangle[v]; i < firstTriangle[v + 1]; i++) {
+                        int t = triangles[i];
+                        x += faceNormals[3 * t];
+                        y += faceNormals[3 * t + 1];
+                        z += faceNormals[3 * t + 2];
+                    }
+                    float length = (float) Math.sqrt(x * x + y * y + z * z);
+                    if (length != 0) {
+                        normals[3 * v] = -x / length;
+                        normals[3 * v + 1] = -y / length;
+                        normals[3 * v + 2] = -z / length;
+                    }
+                }
+            }
+        });
+
+        return normals;
+    }
+
+    /**
+     * Does something to each number in a range, splitting it between threads.
+     */
+    @SuppressWarnings("serial")
+    private abstract static class Range extends RecursiveAction {
+
+        final int from, to;
+
+        Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        abstract void compute(int from, int to);
+
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                compute(from, to);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            final Range outer = this;
+            invokeAll(
+                new Range(from, middle) {
+                    void compute(int from, int to) {
+                        outer.compute(from, to);
+                    }
+                },
+                new Range(middle, to) {
+                    void compute(int from, int to) {
+                        outer.compute(from, to);
+                    }
+                }
+            );
+        }
+
+    }
+
+}
@@ -0,0 +1,196 @@
+package spray;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A hash map from primitive longs, using open addressing with linear probing
+ * so that lookups neither box their keys nor allocate entries.
+ */
+public final class LongMap<V> {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    /** The key 0 marks an empty slot, so its value is kept aside. */
+    private boolean hasZero;
+    private V zeroValue;
+
+    public LongMap() {
+        this(16);
+    }
+
+    public LongMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return key == 0 ? hasZero : keys[slot(key)] == key;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == 0) {
+            return zeroValue;
+        }
+        int i = slot(key);
+        return keys[i] == key ? (V) values[i] : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (key == 0) {
+            V previous = zeroValue;
+            if (!hasZero) {
+                hasZero = true;
+                size++;
+            }
+            zeroValue = value;
+            return previous;
+        }
+        int i = slot(key);
+        if (keys[i] == key) {
+            V previous = (V) values[i];
+            values[i] = value;
+            return previous;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * LOAD_FACTOR) {
+            resize(keys.length << 1);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key == 0) {
+            V previous = zeroValue;
+            if (hasZero) {
+                hasZero = false;
+                zeroValue = null;
+                size--;
+            }
+            return previous;
+        }
+        int i = slot(key);
+        if (keys[i] != key) {
+            return null;
+        }
+        V previous = (V) values[i];
+        size--;
+        // Shift later entries of the probe sequence back so that no gap interrupts it.
+        int gap = i;
+        for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+        return previous;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        hasZero = false;
+        zeroValue = null;
+        size = 0;
+    }
+
+    public Iterable<V> values() {
+        return new Iterable<V>() {
+            public Iterator<V> iterator() {
+                return new Iterator<V>() {
+
+                    int i = hasZero ? -1 : next(0);
+
+                    int next(int from) {
+                        while (from < keys.length && keys[from] == 0) {
+                            from++;
+                        }
+                        return from;
+                    }
+
+                    public boolean hasNext() {
+                        return i < keys.length;
+                    }
+
+                    @SuppressWarnings("unchecked")
+                    public V next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        V value = i == -1 ? zeroValue : (V) values[i];
+                        i = next(i + 1);
+                        return value;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * The slot holding the key, or the empty slot where it would go.
+     */
+    private int slot(long key) {
+        int i = hash(key) & mask;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    static int hash(long key) {
+        // The finalizer from MurmurHash3, so that packed pairs of small ints spread over the table.
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+}
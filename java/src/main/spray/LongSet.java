@@ -0,0 +1,131 @@
+package spray;
+
+import java.util.Arrays;
+
+/**
+ * A hash set of primitive longs, using open addressing with linear probing
+ * so that membership tests neither box their keys nor allocate entries.
+ */
+public final class LongSet {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private int size;
+    private int mask;
+
+    /** The key 0 marks an empty slot, so its membership is kept aside. */
+    private boolean hasZero;
+
+    public LongSet() {
+        this(16);
+    }
+
+    public LongSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long key) {
+        return key == 0 ? hasZero : keys[slot(key)] == key;
+    }
+
+    public boolean add(long key) {
+        if (key == 0) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int i = slot(key);
+        if (keys[i] == key) {
+            return false;
+        }
+        keys[i] = key;
+        if (++size > keys.length * LOAD_FACTOR) {
+            resize(keys.length << 1);
+        }
+        return true;
+    }
+
+    public void addAll(LongSet other) {
+        if (other.hasZero) {
+            add(0);
+        }
+        for (long key : other.keys) {
+            if (key != 0) {
+                add(key);
+            }
+        }
+    }
+
+    public boolean remove(long key) {
+        if (key == 0) {
+            if (!hasZero) {
+                return false;
+            }
+            hasZero = false;
+            size--;
+            return true;
+        }
+        int i = slot(key);
+        if (keys[i] != key) {
+            return false;
+        }
+        size--;
+        // Shift later entries of the probe sequence back so that no gap interrupts it.
+        int gap = i;
+        for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = LongMap.hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                gap = j;
+            }
+        }
+        keys[gap] = 0;
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        hasZero = false;
+        size = 0;
+    }
+
+    /**
+     * The slot holding the key, or the empty slot where it would go.
+     */
+    private int slot(long key) {
+        int i = LongMap.hash(key) & mask;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        keys = new long[capacity];
+        mask = capacity - 1;
+        for (long key : oldKeys) {
+            if (key != 0) {
+                keys[slot(key)] = key;
+            }
+        }
+    }
+
+}
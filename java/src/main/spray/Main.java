@@ -20,17 +20,12 @@ import javax.media.opengl.glu.GLU;
 import javax.swing.Timer;
 
 import com.google.common.base.Stopwatch;
-import com.google.common.collect.FluentIterable;
 import com.google.common.io.Files;
 import processing.core.PApplet;
 import processing.opengl.PGraphicsOpenGL;
-import spray.Mesh.Triangle;
-import spray.Mesh.Vertex;
 import thirdparty.RepeatingReleasedEventsFixer;
 
 import static com.google.common.collect.Lists.newArrayList;
-import static com.google.common.collect.Maps.newHashMap;
-import static com.google.common.collect.Sets.newHashSet;
 import static spray.Geometry.*;
 import static tube.Color.black;
 import static tube.Color.white;
@@ -43,18 +38,36 @@ public class Main extends PApplet {
 
     final Object meshLock = new Object();
 
+    /** How long the mesh thread builds before publishing what it has. */
+    static final long meshBudget = 100;
+
+    /** The triangle count that simplification aims for. */
+    static int simplifiedTriangles = 50000;
+
+    /** How far simplification may move the surface, in ball radii. */
+    static float simplifiedError = 0.5f;
+
+    /** The vertex cache size that the mesh thread reports miss ratios for. */
+    static final int reportedCacheSize = 16;
+
     GL gl;
     GLU glu;
     PGraphicsOpenGL pgogl;
-    Balls<Vec3> balls;
+    Balls balls;
     Line3 view;
     Robot robot;
     Vec2 pmouse;
     boolean robotMouseEvent;
     final Random random = new Random();
-    List<Triangle> triangles;
+    IndexedMesh triangles;
     boolean showBalls;
 
+    /** Whether the mesh thread uses SurfaceNets instead of ball pivoting. */
+    volatile boolean surfaceNets;
+
+    /** Whether the mesh thread simplifies each complete mesh before showing or saving it. */
+    volatile boolean simplify;
+
     boolean[] keys = new boolean[128];
 
     void resetView() {
@@ -64,8 +77,8 @@ public class Main extends PApplet {
     void cone() {
         resetView();
         synchronized (meshLock) {
-            triangles = newArrayList();
-            balls = new Balls<Vec3>();
+            triangles = IndexedMesh.EMPTY;
+            balls = new Balls();
 
             float angle = 0;
             float height = 0;
@@ -74,7 +87,7 @@ public class Main extends PApplet {
                 height += 0.5;
                 angle += 0.5;
                 mag -= 0.1;
-                balls.balls.add(angleVec2(angle, mag).in3d().addZ(height).add(
+                balls.add(angleVec2(angle, mag).in3d().addZ(height).add(
                     xyz(random.nextFloat(), random.nextFloat(), random.nextFloat())
                 ));
             }
@@ -86,13 +99,13 @@ public class Main extends PApplet {
     void wall() {
         resetView();
         synchronized (meshLock) {
-            triangles = newArrayList();
-            balls = new Balls<Vec3>();
+            triangles = IndexedMesh.EMPTY;
+            balls = new Balls();
 
             for (int y = 0; y < 2; y++) {
                 for (float x = -200; x < 200; x+= balls.radius * 2) {
                     for (float z = 0; z < 200; z+= balls.radius * 2) {
-                        balls.balls.add(xyz(
+                        balls.add(xyz(
                             x + random.nextFloat(),
                             y * balls.radius * 2 + random.nextFloat() * 4,
                             z + random.nextFloat()));
@@ -131,8 +144,8 @@ public class Main extends PApplet {
         });
 
         resetView();
-        triangles = newArrayList();
-        balls = new Balls<Vec3>();
+        triangles = IndexedMesh.EMPTY;
+        balls = new Balls();
 
         loop();
 
@@ -148,47 +161,102 @@ public class Main extends PApplet {
         Thread t = new Thread("mesh") {
             public void run() {
 
-                ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
-                    public Thread newThread(Runnable r) {
-                        return new Thread(r, "mesh-executor");
-                    }
-                });
-
                 Stopwatch stopwatch = new Stopwatch();
 
-                while (true) {
+                Mesh mesh = null;
+                // The version of the balls last meshed, or -1 to mesh them all afresh.
+                long meshed = -1;
+                // The set those versions count; a new scene replaces it and starts counting again.
+                Balls meshedBalls = null;
+                boolean complete = true;
+                boolean meshedWithNets = false;
+                boolean meshedSimplified = false;
+                IndexedMesh unsimplified = IndexedMesh.EMPTY;
+
+                // Each pass meshes for at most the budget and publishes what it has,
+                // so a large build shows up progressively and picks up new balls as it goes.
+                while (!isInterrupted()) {
                     try {
                         stopwatch.reset();
                         stopwatch.start();
-                        final Balls balls;
-                        synchronized (meshLock) {
-                            balls = new Balls<Vec3>(Main.this.balls.balls);
+                        boolean nets = surfaceNets;
+                        if (nets != meshedWithNets) {
+                            meshedWithNets = nets;
+                            mesh = null;
+                            meshed = -1;
                         }
-                        Future<Mesh> meshFuture = executor.submit(new Callable<Mesh>() {
-                            public Mesh call() throws Exception {
-                                return new Mesh(balls);
+                        boolean simplified = simplify;
+                        Balls snapshot;
+                        Balls.Changes changes;
+                        synchronized (meshLock) {
+                            if (Main.this.balls != meshedBalls) {
+                                meshedBalls = Main.this.balls;
+                                mesh = null;
+                                meshed = -1;
                             }
-                        });
-                        Mesh mesh = null;
-                        try {
-                            mesh = meshFuture.get(3, TimeUnit.SECONDS);
-                        } catch (ExecutionException e) {
-                            e.printStackTrace();
-                        } catch (TimeoutException e) {
-                            System.err.println("Mesh calculation timed out");
+                            snapshot = Main.this.balls.snapshot();
+                            changes = meshed == -1 ? null : Main.this.balls.changesSince(meshed);
+                        }
+                        float radius = snapshot.radius;
+                        boolean changed = !complete || changes == null || !changes.isEmpty();
+                        if (!changed && simplified == meshedSimplified) {
+                            Thread.sleep(10);
+                            continue;
                         }
-                        meshFuture.cancel(true);
-                        if (mesh != null) {
-                            synchronized (meshLock) {
-                                triangles = mesh.triangles();
-                                loop();
+                        if (changed) {
+                            if (nets) {
+                                DistanceField field;
+                                if (snapshot.hasDistanceField()) {
+                                    field = snapshot.distanceField();
+                                } else {
+                                    // Sampled outside the lock, then handed to the balls to keep up to date.
+                                    DistanceField sampled = DistanceField.of(snapshot, radius * SurfaceNets.cellScale);
+                                    field = sampled.snapshot();
+                                    synchronized (meshLock) {
+                                        if (Main.this.balls == meshedBalls) {
+                                            Main.this.balls.setDistanceField(sampled, snapshot.version());
+                                        }
+                                    }
+                                }
+                                unsimplified = SurfaceNets.mesh(field);
+                                complete = true;
+                            } else {
+                                if (mesh == null || changes == null) {
+                                    mesh = new Mesh();
+                                    complete = mesh.setBalls(snapshot, meshBudget, TimeUnit.MILLISECONDS);
+                                } else {
+                                    complete = mesh.update(changes.added, changes.removed, meshBudget, TimeUnit.MILLISECONDS);
+                                }
+                                unsimplified = mesh.indexed();
                             }
+                            meshed = snapshot.version();
+                        }
+                        // Partial meshes are replaced too soon to be worth simplifying.
+                        meshedSimplified = simplified;
+                        IndexedMesh meshTriangles = simplified && complete
+                            ? Simplification.simplify(unsimplified, simplifiedTriangles, radius * simplifiedError)
+                            : unsimplified;
+                        // Computed here rather than in draw, and carried over by the reordering.
+                        meshTriangles.normals();
+                        String cacheReport = "";
+                        if (complete) {
+                            float before = CacheOrder.missRatio(meshTriangles, reportedCacheSize);
+                            meshTriangles = CacheOrder.reorder(meshTriangles);
+                            float after = CacheOrder.missRatio(meshTriangles, reportedCacheSize);
+                            cacheReport = String.format(" (ACMR %.2f -> %.2f)", before, after);
+                        }
+                        synchronized (meshLock) {
+                            triangles = meshTriangles;
+                            loop();
                         }
                         stopwatch.stop();
-                        System.out.println(stopwatch.toString());
-                        Thread.yield();
+                        System.out.println(stopwatch.toString() + (complete ? cacheReport : " (partial)"));
                     } catch (InterruptedException e) {
                         return;
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        mesh = null;
+                        meshed = -1;
                     }
                 }
             }
@@ -230,37 +298,37 @@ public class Main extends PApplet {
 
             if (mousePressed) {
                 int i = (int) Math.max(1, (spread * spread * 20));
-                while (i-- > 0) {
-                    if (mouseButton == LEFT) {
-                        Vec3 ball = balls.rayPack(ray());
-                        if (ball != null) {
-                            balls.balls.add(ball);
-                        }
-                    } else {
-                        Vec3 ball = balls.raySearch(ray());
-                        if (ball != null) {
-                            balls.balls.remove(ball);
+                if (mouseButton == LEFT) {
+                    List<Line3> rays = newArrayList();
+                    while (i-- > 0) {
+                        rays.add(ray());
+                    }
+                    try {
+                        float brushRadius = balls.radius * brushScale;
+                        for (Vec3 ball : balls.rayPack(rays, brushRadius)) {
+                            balls.add(ball, brushRadius);
                         }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else {
+                    while (i-- > 0) {
+                        balls.remove(balls.raySearch(ray()));
                     }
                 }
             }
 
             if (!showBalls) {
-                for (Triangle t : triangles) {
-
-                    Iterator<Vertex> vertices = t.vertices().iterator();
-                    Vec3 a = vertices.next().asVec3();
-                    Vec3 b = vertices.next().asVec3();
-                    Vec3 c = vertices.next().asVec3();
-
-                    pushMatrix();
-                    beginShape(TRIANGLES);
-                    vertex(a.x(), a.y(), a.z());
-                    vertex(b.x(), b.y(), b.z());
-                    vertex(c.x(), c.y(), c.z());
-                    endShape();
-                    popMatrix();
+                float[] positions = triangles.positions;
+                float[] normals = triangles.normals();
+                int[] indices = triangles.indices;
+                beginShape(TRIANGLES);
+                for (int i = 0; i < indices.length; i++) {
+                    int v = 3 * indices[i];
+                    normal(normals[v], normals[v + 1], normals[v + 2]);
+                    vertex(positions[v], positions[v + 1], positions[v + 2]);
                 }
+                endShape();
             }
 
             if (showBalls) {
@@ -269,10 +337,13 @@ public class Main extends PApplet {
                 stroke(0, 0, 0);
                 fill(color(255, 0, 0));
 
-                for (Vec3 ball : FluentIterable.from(balls.balls)) {
+                for (int id = 0; id < balls.idBound(); id++) {
+                    if (!balls.contains(id)) {
+                        continue;
+                    }
                     pushMatrix();
-                    translate(ball.x(), ball.y(), ball.z());
-                    sphere(balls.radius);
+                    translate(balls.x(id), balls.y(id), balls.z(id));
+                    sphere(balls.radius(id));
                     popMatrix();
                 }
             }
@@ -326,6 +397,9 @@ public class Main extends PApplet {
 
     float spread = 0.1f;
 
+    /** The size of sprayed balls, in default ball radii; '[' halves it and ']' doubles it. */
+    float brushScale = 1;
+
     Line3 ray() {
         float spread;
         do {
@@ -401,6 +475,12 @@ public class Main extends PApplet {
             case 'b':
                 showBalls = !showBalls;
                 break;
+            case 'n':
+                surfaceNets = !surfaceNets;
+                break;
+            case 'm':
+                simplify = !simplify;
+                break;
             case 'i':
                 inputBalls();
                 break;
@@ -410,6 +490,12 @@ public class Main extends PApplet {
             case 'p':
                 outputTriangles();
                 break;
+            case '[':
+                brushScale = Math.max(brushScale / 2, 0.25f);
+                break;
+            case ']':
+                brushScale = Math.min(brushScale * 2, 8f);
+                break;
         }
 
         int i = (int) key;
@@ -427,13 +513,19 @@ public class Main extends PApplet {
     void inputBalls() {
         synchronized (meshLock) {
             try {
-                balls.balls.clear();
+                balls.clear();
                 if (ballFile.exists() && ballFile.isFile()) {
                     List<String> lines = Files.readLines(ballFile, java.nio.charset.Charset.defaultCharset());
                     for (String line : lines) {
                         line = line.trim();
+                        // Each line is a center and radius; files from before balls had their own radii leave it out.
                         if (line.length() != 0) {
-                            balls.balls.add(parseXYZ(line));
+                            String[] fields = line.split(",");
+                            if (fields.length > 3) {
+                                balls.add(parseXYZ(line), Float.parseFloat(fields[3]));
+                            } else {
+                                balls.add(parseXYZ(line));
+                            }
                         }
                     }
                 }
@@ -447,8 +539,8 @@ public class Main extends PApplet {
         synchronized (meshLock) {
             try {
                 Writer w = new FileWriter(ballFile);
-                for (Vec3 ball : balls.balls) {
-                    w.write(formatXYZ(ball));
+                for (Sphere ball : balls.spheres()) {
+                    w.write(formatXYZ(ball.center()) + "," + ball.radius());
                     w.write(System.lineSeparator());
                 }
                 w.flush();
@@ -462,43 +554,28 @@ public class Main extends PApplet {
     void outputTriangles() {
         synchronized (meshLock) {
             try {
-                Set<Vertex> vertexSet = newHashSet();
-                for (Triangle t : triangles) {
-                    for (Vertex v : t.vertices()) {
-                        vertexSet.add(v);
-                    }
-                }
-                List<Vertex> vertexList = newArrayList(vertexSet);
-                Map<Vertex, Integer> vertexMap = newHashMap();
-                for (int i = 0; i < vertexList.size(); i++) {
-                    vertexMap.put(vertexList.get(i), i);
-                }
+                float[] positions = triangles.positions;
+                int[] indices = triangles.indices;
 
                 Writer w = new FileWriter(meshFile);
 
                 // number of vertices
-                w.write(Integer.toString(vertexList.size()));
+                w.write(Integer.toString(triangles.vertexCount()));
                 w.write(System.lineSeparator());
 
                 // list of vertices
-                for (Vertex v : vertexList) {
-                    w.write(formatXYZ(v.asVec3()));
+                for (int i = 0; i < positions.length; i += 3) {
+                    w.write(formatXYZ(xyz(positions[i], positions[i + 1], positions[i + 2])));
                     w.write(System.lineSeparator());
                 }
 
                 // number of triangles
-                w.write(Integer.toString(triangles.size()));
+                w.write(Integer.toString(triangles.triangleCount()));
                 w.write(System.lineSeparator());
 
                 // list of triangles
-                for (Triangle t : triangles) {
-                    Iterator<Vertex> vs = t.vertices().iterator();
-                    w.write(String.format(
-                        "%d,%d,%d",
-                        vertexMap.get(vs.next()),
-                        vertexMap.get(vs.next()),
-                        vertexMap.get(vs.next())
-                    ));
+                for (int i = 0; i < indices.length; i += 3) {
+                    w.write(String.format("%d,%d,%d", indices[i], indices[i + 1], indices[i + 2]));
                     w.write(System.lineSeparator());
                 }
 
@@ -1,62 +1,643 @@
 package spray;
 
 import com.google.common.base.Function;
-import com.google.common.base.Predicate;
-import com.google.common.collect.FluentIterable;
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
 
 import java.util.*;
-import java.util.Map.Entry;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
 import static com.google.common.collect.Sets.newHashSet;
 import static java.util.Arrays.asList;
-import static java.util.Collections.unmodifiableList;
-import static org.testng.collections.Lists.newArrayList;
 import static spray.Geometry.*;
 
 public final class Mesh {
 
-    int previousVertexId, previousTriangleId;
+    final AtomicInteger previousVertexId = new AtomicInteger();
 
-    List<Triangle> triangles = newArrayList();
+    final Triangles triangles = new Triangles(true);
 
-    public List<Triangle> triangles() {
-        return unmodifiableList(triangles);
+    /**
+     * Flatten the current triangles into arrays, numbering vertices in order of first use.
+     */
+    public IndexedMesh indexed() {
+        int[] index = new int[previousVertexId.get() + 1];
+        Arrays.fill(index, -1);
+        float[] positions = new float[9 * triangles.size()];
+        int[] indices = new int[3 * triangles.size()];
+        int vertexCount = 0, i = 0;
+        for (int t = 0; t < triangles.bound(); t++) {
+            if (!triangles.contains(t)) {
+                continue;
+            }
+            for (int corner = 0; corner < 3; corner++) {
+                Vertex v = triangles.corner(t, corner);
+                if (index[v.id] == -1) {
+                    index[v.id] = vertexCount;
+                    positions[3 * vertexCount] = v.loc.x();
+                    positions[3 * vertexCount + 1] = v.loc.y();
+                    positions[3 * vertexCount + 2] = v.loc.z();
+                    vertexCount++;
+                }
+                indices[i++] = index[v.id];
+            }
+        }
+        return new IndexedMesh(Arrays.copyOf(positions, 3 * vertexCount), indices);
     }
 
     public static float rollingScale = 3f;
 
+    /** Components with at least this many balls are split into tiles and built by several threads. */
+    public static int tiledComponentSize = 4000;
+
+    /** The edge length of a tile, in rolling radii. */
+    public static float tileScale = 16f;
+
+    /** Fronts left over from an earlier call with at least this many open edges are resumed in tiles. */
+    public static int tiledFrontSize = 1000;
+
+    /**
+     * Whether each sweep of the front is sorted along a space-filling curve before it is pivoted.
+     * Off by default: edges are opened around the front in order already, and MeshBenchmark
+     * shows the sort costing more than it saves.
+     */
+    public static boolean sortedSweeps = false;
+
+    /**
+     * Pivots smaller than this are the rolling ball's own starting contact, not a new vertex.
+     */
+    private static final float MIN_PIVOT_ANGLE = 0.01f;
+
+    private static final float PI = (float) Math.PI;
+
+    /** How many of a seed vertex's nearest neighbors are tried as the other corners of its triangle. */
+    private static final int SEED_CANDIDATES = 12;
+
+    /** The fraction of the rolling radius by which a vertex may intrude on a seed ball. */
+    private static final float SEED_TOLERANCE = 0.001f;
+
+    /** Shared by every mesh for building disconnected components at once, and by SurfaceNets and DistanceField. */
+    static final ForkJoinPool pool = new ForkJoinPool();
+
+    /** Set when the thread building this mesh is interrupted, so that builders on other threads stop too; each call clears it. */
+    volatile boolean cancelled;
+
+    private static final long NO_DEADLINE = Long.MIN_VALUE;
+
+    /** The System.nanoTime at which the current call must stop building and return. */
+    private volatile long deadline = NO_DEADLINE;
+
+    /** Open edges left over when an earlier call ran out of time, to be pivoted by the next one. */
+    private Builder front;
+
+    /** Vertices to seed new surfaces from once the front is exhausted, highest first. */
+    private final Queue<Vertex> unseeded = new PriorityQueue<Vertex>(11, BY_HEIGHT.reverse());
+
+    /**
+     * The rolling ball's radius against balls of the default size. Against other balls it
+     * stays the same distance from their surfaces, and so a different distance from their centers.
+     */
+    float rollingRadius;
+
+    /** The default radius of the balls being meshed. */
+    float ballRadius;
+
+    /** The greatest reach of any vertex yet, which removals do not shrink. */
+    float maxReach;
+
+    /** Every ball currently in the mesh, keyed by the ball it was made from. */
+    final Map<IsVec3, Vertex> vertices = newHashMap();
+
+    SpatialHash<Vertex> grid;
+
+    /** Edges that have already been pivoted over, either successfully or not. */
+    final LongSet closedEdges = new LongSet();
+
     public Mesh() { }
 
-    public Mesh(Balls<?> balls) {
+    public Mesh(Balls balls) {
         setBalls(balls);
     }
 
-    public void setBalls(Balls<?> balls) {
+    /**
+     * Whether every open edge has been pivoted over and every vertex has been reached or seeded.
+     * Only false after a timed call runs out of time; the next call picks up where it left off.
+     */
+    public boolean isComplete() {
+        return front.openEdges.isEmpty() && unseeded.isEmpty();
+    }
+
+    public void setBalls(Balls balls) {
+        setBalls(balls, NO_DEADLINE);
+    }
+
+    /**
+     * Like setBalls, but stops after the timeout with the mesh partly built.
+     *
+     * @return whether the mesh is complete
+     */
+    public boolean setBalls(Balls balls, long timeout, TimeUnit unit) {
+        return setBalls(balls, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    private boolean setBalls(Balls balls, long deadline) {
+
+        ballRadius = balls.radius;
+        rollingRadius = ballRadius * rollingScale;
+        maxReach = rollingRadius;
+        this.deadline = deadline;
+        cancelled = false;
+        triangles.clear();
+        vertices.clear();
+        closedEdges.clear();
+        unseeded.clear();
+        grid = new SpatialHash<Vertex>(2 * rollingRadius);
+        front = new Builder(grid, closedEdges);
+
+        for (Sphere ball : balls.spheres()) {
+            addVertex(ball);
+        }
+
+        List<Callable<Progress>> tasks = newArrayList();
+        for (Set<Vertex> component : components()) {
+            tasks.add(componentTask(component));
+        }
+        build(tasks);
+
+        return isComplete();
+    }
+
+    /**
+     * Run the tasks on the pool and gather what their builders made into this mesh, leaving
+     * their open edges on the front and the vertices they had not reached unseeded.
+     */
+    private void build(List<Callable<Progress>> tasks) {
+
+        List<Future<Progress>> futures = newArrayList();
+        for (Callable<Progress> task : tasks) {
+            futures.add(pool.submit(task));
+        }
+
+        try {
+            // A resumed front closes edges in this mesh's own set already.
+            Set<LongSet> merged = Sets.newIdentityHashSet();
+            merged.add(closedEdges);
+            for (Future<Progress> future : futures) {
+                Progress progress = future.get();
+                for (Builder builder : progress.builders) {
+                    absorb(builder);
+                    if (merged.add(builder.closedEdges)) {
+                        closedEdges.addAll(builder.closedEdges);
+                    }
+                    for (Builder.OpenEdge openEdge : builder.openEdges.values()) {
+                        front.open(openEdge.a, openEdge.b, openEdge.rollFrom);
+                    }
+                }
+                unseeded.addAll(progress.remaining);
+            }
+        } catch (InterruptedException e) {
+            for (Future<Progress> future : futures) {
+                future.cancel(true);
+            }
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Group the vertices into sets that no rolling ball can span, by joining every
+     * pair closer than the sum of their reaches. Sets too small to hold a triangle are dropped.
+     */
+    private List<Set<Vertex>> components() {
+
+        List<Vertex> all = newArrayList(vertices.values());
+        int[] index = new int[previousVertexId.get() + 1];
+        for (int i = 0; i < all.size(); i++) {
+            index[all.get(i).id] = i;
+        }
+
+        UnionFind sets = new UnionFind(all.size());
+        for (int i = 0; i < all.size(); i++) {
+            Vertex u = all.get(i);
+            for (Vertex v : grid.within(u, u.reach + maxReach)) {
+                if (distance(u, v) < u.reach + v.reach) {
+                    sets.union(i, index[v.id]);
+                }
+            }
+        }
+
+        Map<Integer, Set<Vertex>> components = newHashMap();
+        for (int i = 0; i < all.size(); i++) {
+            Integer root = sets.find(i);
+            Set<Vertex> component = components.get(root);
+            if (component == null) {
+                component = newHashSet();
+                components.put(root, component);
+            }
+            component.add(all.get(i));
+        }
+
+        List<Set<Vertex>> meshable = newArrayList();
+        for (Set<Vertex> component : components.values()) {
+            if (component.size() >= 3) {
+                meshable.add(component);
+            }
+        }
+        return meshable;
+    }
+
+    /**
+     * Group the unseeded vertices as components does, together with every vertex not yet in
+     * a triangle that joins onto them, and empty the queue.
+     */
+    private List<Set<Vertex>> unseededComponents() {
+
+        List<Set<Vertex>> meshable = newArrayList();
+        Set<Vertex> reached = newHashSet();
+        for (Vertex seed : unseeded) {
+            if (seed.removed || triangles.countAt(seed) != 0 || !reached.add(seed)) {
+                continue;
+            }
+            Set<Vertex> component = newHashSet();
+            component.add(seed);
+            Deque<Vertex> stack = new ArrayDeque<Vertex>();
+            stack.push(seed);
+            while (!stack.isEmpty()) {
+                Vertex u = stack.pop();
+                for (Vertex v : grid.within(u, u.reach + maxReach)) {
+                    if (triangles.countAt(v) == 0 && distance(u, v) < u.reach + v.reach && reached.add(v)) {
+                        component.add(v);
+                        stack.push(v);
+                    }
+                }
+            }
+            if (component.size() >= 3) {
+                meshable.add(component);
+            }
+        }
+        unseeded.clear();
+        return meshable;
+    }
+
+    /**
+     * The builders that meshed one component, and the vertices they had not reached when time ran out.
+     */
+    private static final class Progress {
+
+        final List<Builder> builders = newArrayList();
+
+        Set<Vertex> remaining;
+
+    }
+
+    /**
+     * Mesh one component, seeding new builders until every vertex has been reached.
+     */
+    private Callable<Progress> componentTask(final Set<Vertex> component) {
+        return new Callable<Progress>() {
+            public Progress call() {
+                Progress progress = new Progress();
+                List<Builder> builders = progress.builders;
+                Set<Vertex> remaining = newHashSet(component);
+                progress.remaining = remaining;
+                SpatialHash<Vertex> remainingGrid = new SpatialHash<Vertex>(2 * rollingRadius, remaining);
+                // Seed at least once, so that every call makes progress however short its budget.
+                do {
+                    List<Builder> seeded;
+                    if (remaining.size() >= tiledComponentSize) {
+                        Builder start = new Builder(remainingGrid, new LongSet());
+                        start.seed(highest(remaining));
+                        seeded = buildTiled(start);
+                    } else {
+                        Builder builder = new Builder(remainingGrid, new LongSet());
+                        builder.seed(highest(remaining));
+                        builder.run();
+                        seeded = asList(builder);
+                    }
+                    builders.addAll(seeded);
+                    for (Builder builder : seeded) {
+                        for (Vertex v : builder.vertices) {
+                            remaining.remove(v);
+                            remainingGrid.remove(v);
+                        }
+                    }
+                } while (remaining.size() != 0 && !outOfTime());
+                return progress;
+            }
+        };
+    }
+
+    /**
+     * Pivot over the front left by an earlier call with a thread per tile, as for a new surface.
+     */
+    private Callable<Progress> frontTask() {
+        final Builder start = new Builder(grid, closedEdges);
+        for (Builder.OpenEdge openEdge : front.openEdges.values()) {
+            start.open(openEdge.a, openEdge.b, openEdge.rollFrom);
+        }
+        front.clearFront();
+        return new Callable<Progress>() {
+            public Progress call() {
+                Progress progress = new Progress();
+                progress.builders.addAll(buildTiled(start));
+                progress.remaining = Collections.emptySet();
+                return progress;
+            }
+        };
+    }
+
+    /**
+     * Grow one surface from the open edges of the start with a thread per tile of space.
+     *
+     * Each round is one sweep of the front. Every tile pivots over the open edges lying
+     * wholly inside it, deferring any pivot that would reach a vertex in another tile. A
+     * single stitcher then pivots over the deferred edges and the seams between tiles,
+     * holding the rest of the front so that it can join onto it, and hands new interior
+     * edges back to their tiles for the next round. Edges are only ever touched by the tile
+     * that owns both endpoints, or by the stitcher while no tile is running. Each tile closes
+     * edges in a set of its own, which is merged into the shared set after the round.
+     *
+     * Going one sweep at a time keeps the order of pivots close to that of a single builder.
+     * Were a tile to run ahead while its deferred pivots wait, it would close edges those
+     * pivots should have joined onto, and the stitcher would then add a third triangle to them.
+     */
+    private List<Builder> buildTiled(Builder start) {
+
+        SpatialHash<Vertex> grid = start.grid;
+        LongSet closed = start.closedEdges;
+        List<Builder> builders = newArrayList();
+
+        Builder stitcher = start;
+        builders.add(stitcher);
+
+        while (stitcher.openEdges.size() != 0 && !outOfTime()) {
 
-        Balls<Vertex> vBalls = new Balls<Vertex>(
-            FluentIterable.from(balls.balls).transform(new Function<IsVec3, Vertex>() {
-                public Vertex apply(IsVec3 point) {
-                    return new Vertex(point.asVec3());
+            // Edges across a seam wait for the next stitcher; the rest go to their tiles.
+            Map<Long, Builder> tiles = newHashMap();
+            List<Builder.OpenEdge> seams = newArrayList();
+            for (Builder.OpenEdge openEdge : stitcher.openEdges.values()) {
+                Long tile = tileOf(openEdge.a);
+                if (tileOf(openEdge.b) != tile) {
+                    seams.add(openEdge);
+                    continue;
                 }
-            })
-        );
+                Builder builder = tiles.get(tile);
+                if (builder == null) {
+                    builder = new Builder(grid, new LongSet());
+                    builder.alsoClosed = closed;
+                    builder.tile = tile;
+                    tiles.put(tile, builder);
+                }
+                builder.open(openEdge.a, openEdge.b, openEdge.rollFrom);
+            }
+            stitcher.clearFront();
+
+            List<ForkJoinTask<?>> tasks = newArrayList();
+            for (final Builder builder : tiles.values()) {
+                tasks.add(ForkJoinTask.adapt(new Runnable() {
+                    public void run() {
+                        builder.sweep();
+                    }
+                }));
+            }
+            ForkJoinTask.invokeAll(tasks);
 
-        while (vBalls.balls.size() != 0) {
-            Builder builder = new Builder(vBalls);
-            triangles.addAll(builder.triangles);
-            for (Vertex v : builder.vertices) {
-                vBalls.balls.remove(v);
+            stitcher = new Builder(grid, closed);
+            stitcher.stitching = true;
+            for (Builder.OpenEdge seam : seams) {
+                stitcher.open(seam.a, seam.b, seam.rollFrom);
             }
+            for (Builder builder : tiles.values()) {
+                closed.addAll(builder.closedEdges);
+                // Edges still pending are the tile's for its next sweep; the others were deferred.
+                Set<Builder.OpenEdge> next = Sets.newIdentityHashSet();
+                next.addAll(builder.pending);
+                for (Builder.OpenEdge openEdge : builder.openEdges.values()) {
+                    if (next.contains(openEdge)) {
+                        stitcher.openLater(openEdge.a, openEdge.b, openEdge.rollFrom);
+                    } else {
+                        stitcher.open(openEdge.a, openEdge.b, openEdge.rollFrom);
+                    }
+                }
+                builder.clearFront();
+                builders.add(builder);
+            }
+            stitcher.sweep();
+            builders.add(stitcher);
         }
 
+        return builders;
     }
 
-    public class Vertex implements IsVec3 {
+    private long tileOf(Vertex v) {
+        return SpatialHash.cell(v, tileScale * rollingRadius);
+    }
 
-        private final int id = ++previousVertexId;
+    /**
+     * Remesh only the region around the given changes to the ball set.
+     *
+     * Triangles whose rolling ball touched an added or removed ball are torn out,
+     * and the ball is pivoted again from the boundary of the resulting hole.
+     */
+    public void update(Iterable<? extends Sphere> added, Iterable<? extends Sphere> removed) {
+        update(added, removed, NO_DEADLINE);
+    }
+
+    /**
+     * Like update, but stops after the timeout with the mesh partly built.
+     * Work left over from an earlier timed call is resumed first.
+     *
+     * @return whether the mesh is complete
+     */
+    public boolean update(Iterable<? extends Sphere> added, Iterable<? extends Sphere> removed,
+                          long timeout, TimeUnit unit) {
+        return update(added, removed, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    private boolean update(Iterable<? extends Sphere> added, Iterable<? extends Sphere> removed, long deadline) {
+
+        checkState(grid != null, "update requires a previous call to setBalls");
+        this.deadline = deadline;
+        cancelled = false;
+
+        Set<Integer> torn = newHashSet();
+        List<Vertex> changed = newArrayList();
+        List<Vertex> addedVertices = newArrayList();
+
+        for (Sphere ball : removed) {
+            Vertex v = vertices.remove(ball);
+            if (v != null) {
+                v.removed = true;
+                grid.remove(v);
+                changed.add(v);
+                for (int i = 0; i < triangles.countAt(v); i++) {
+                    torn.add(triangles.at(v, i));
+                }
+            }
+        }
+
+        for (Sphere ball : added) {
+            if (!vertices.containsKey(ball)) {
+                Vertex v = addVertex(ball);
+                changed.add(v);
+                addedVertices.add(v);
+                for (int t : nearbyTriangles(v)) {
+                    if (distance(triangles.rolling(t), v) < v.reach) {
+                        torn.add(t);
+                    }
+                }
+            }
+        }
+
+        for (int t : torn) {
+            removeTriangle(t);
+        }
+
+        // Reopen every edge near the change that now borders only one triangle.
+        for (Vertex v : changed) {
+            for (int t : nearbyTriangles(v)) {
+                Vertex a = triangles.corner(t, 0), b = triangles.corner(t, 1), c = triangles.corner(t, 2);
+                reopen(t, a, b);
+                reopen(t, b, c);
+                reopen(t, c, a);
+            }
+        }
+
+        // Added balls with no meshed neighbors start components of their own.
+        for (Vertex v : addedVertices) {
+            if (nearbyTriangles(v).isEmpty()) {
+                unseeded.add(v);
+            }
+        }
+
+        advance();
+        return isComplete();
+    }
+
+    /**
+     * Pivot over the front until it is exhausted or time runs out, in tiles if it is large,
+     * then mesh the unseeded vertices a component per task, as setBalls does.
+     */
+    private void advance() {
+        while (!outOfTime()) {
+            if (front.openEdges.size() >= tiledFrontSize) {
+                build(Collections.singletonList(frontTask()));
+            } else {
+                front.run();
+                absorb(front);
+                front.triangles.clear();
+                front.vertices.clear();
+            }
+            if (!front.openEdges.isEmpty()) {
+                continue;
+            }
+            List<Callable<Progress>> tasks = newArrayList();
+            for (Set<Vertex> component : unseededComponents()) {
+                tasks.add(componentTask(component));
+            }
+            if (tasks.isEmpty()) {
+                return;
+            }
+            build(tasks);
+        }
+    }
+
+    boolean outOfTime() {
+        return cancelled || (deadline != NO_DEADLINE && System.nanoTime() - deadline > 0);
+    }
+
+    /**
+     * Pivot again over the edge AB of T if no triangle lies on its other side.
+     */
+    private void reopen(int t, Vertex a, Vertex b) {
+        if (triangleCount(a, b) == 1) {
+            closedEdges.remove(edge(a, b));
+            front.open(b, a, triangles.rolling(t));
+        }
+    }
+
+    private Vertex addVertex(Sphere ball) {
+        float reach = rollingRadius - ballRadius + ball.radius();
+        maxReach = Math.max(maxReach, reach);
+        Vertex v = new Vertex(previousVertexId.incrementAndGet(), ball.center(), reach);
+        vertices.put(ball, v);
+        grid.add(v);
+        return v;
+    }
+
+    private static final Ordering<Vertex> BY_HEIGHT = Ordering.natural().onResultOf(new Function<Vertex, Float>() {
+        public Float apply(Vertex vertex) {
+            return vertex.loc.z();
+        }
+    });
+
+    private static final Comparator<Builder.OpenEdge> BY_CURVE_ORDER = new Comparator<Builder.OpenEdge>() {
+        public int compare(Builder.OpenEdge x, Builder.OpenEdge y) {
+            long xOrder = x.order(), yOrder = y.order();
+            return xOrder < yOrder ? -1 : xOrder > yOrder ? 1 : 0;
+        }
+    };
+
+    private static Vertex highest(Iterable<Vertex> vertices) {
+        return BY_HEIGHT.max(vertices);
+    }
+
+    private void absorb(Builder builder) {
+        triangles.addAll(builder.triangles);
+    }
+
+    private void removeTriangle(int t) {
+        Vertex a = triangles.corner(t, 0), b = triangles.corner(t, 1), c = triangles.corner(t, 2);
+        triangles.remove(t);
+        for (long edge : new long[]{ edge(a, b), edge(b, c), edge(c, a) }) {
+            closedEdges.remove(edge);
+            front.openEdges.remove(edge);
+        }
+    }
+
+    /**
+     * Triangles with a vertex close enough that their rolling ball might touch the point.
+     */
+    private Set<Integer> nearbyTriangles(IsVec3 point) {
+        Set<Integer> nearby = newHashSet();
+        for (Vertex v : grid.within(point, 2 * maxReach)) {
+            for (int i = 0; i < triangles.countAt(v); i++) {
+                nearby.add(triangles.at(v, i));
+            }
+        }
+        return nearby;
+    }
+
+    private int triangleCount(Vertex a, Vertex b) {
+        int count = 0;
+        for (int i = 0; i < triangles.countAt(a); i++) {
+            int t = triangles.at(a, i);
+            if (triangles.corner(t, 0) == b || triangles.corner(t, 1) == b || triangles.corner(t, 2) == b) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public static final class Vertex implements IsVec3 {
+
+        private final int id;
+
+        /** Set once the ball this vertex was made from leaves the mesh. */
+        private boolean removed;
 
         public int hashCode() {
             return id;
@@ -64,61 +645,183 @@ public final class Mesh {
 
         private Vec3 loc;
 
+        /** How far the center of a rolling ball resting on this vertex is from it. */
+        private final float reach;
+
         public Vec3 asVec3() {
             return loc;
         }
 
-        private Vertex(Vec3 loc) {
+        private Vertex(int id, Vec3 loc, float reach) {
+            this.id = id;
             this.loc = loc;
+            this.reach = reach;
         }
 
     }
 
     /**
-     * Edges are undirected.
+     * Packs the undirected edge between two vertices into a long, lower id first.
      */
-    public class Edge {
+    static long edge(Vertex a, Vertex b) {
+        int min = Math.min(a.id, b.id), max = Math.max(a.id, b.id);
+        return ((long) min << 32) | max;
+    }
+
+    /**
+     * Triangles as flat arrays rather than an object each: three corners and the center of the
+     * rolling ball that touched them per slot. A triangle is named by its slot, which stays the
+     * same until it is removed and is then filled again by a later one. A mesh's store also
+     * lists the triangles at each vertex; a builder's, which only ever grows, does not.
+     */
+    static final class Triangles {
+
+        private Vertex[] corners = new Vertex[3 * 16];
+        private float[] rolling = new float[3 * 16];
 
-        private final Vertex a, b;
+        /** Slots below this have been filled; those removed since have a null first corner. */
+        private int bound;
+        private int size;
 
-        private Edge(Vertex a, Vertex b) {
-            boolean flip = a.id > b.id;
-            this.a = flip ? b : a;
-            this.b = flip ? a : b;
+        /** Removed slots, the latest last. */
+        private int[] free = new int[16];
+        private int freeCount;
+
+        /** The slots of the triangles at each vertex, by id, and how many; null if not kept. */
+        private int[][] around;
+        private int[] aroundCount;
+
+        Triangles(boolean byVertex) {
+            if (byVertex) {
+                around = new int[16][];
+                aroundCount = new int[16];
+            }
         }
 
-        public boolean equals(Object o) {
-            return this == o || (o instanceof Edge && a == ((Edge) o).a && b == ((Edge) o).b);
+        int size() {
+            return size;
         }
 
-        public int hashCode() {
-            return 31 * a.hashCode() + b.hashCode();
+        /** Every slot in use is less than this. */
+        int bound() {
+            return bound;
         }
 
-    }
+        boolean contains(int t) {
+            return t >= 0 && t < bound && corners[3 * t] != null;
+        }
 
-    public class Triangle {
-        private final int id = ++previousTriangleId;
+        /** Corner 0, 1 or 2 of T, wound clockwise when seen from its rolling ball. */
+        Vertex corner(int t, int i) {
+            return corners[3 * t + i];
+        }
 
-        public int hashCode() {
-            return id;
+        Vec3 rolling(int t) {
+            return xyz(rolling[3 * t], rolling[3 * t + 1], rolling[3 * t + 2]);
         }
 
-        private final Vertex a, b, c;
+        int add(Vertex a, Vertex b, Vertex c, Vec3 center) {
+            return add(a, b, c, center.x(), center.y(), center.z());
+        }
 
-        public Triangle(Vertex a, Vertex b, Vertex c) {
-            this.a = a;
-            this.b = b;
-            this.c = c;
+        private int add(Vertex a, Vertex b, Vertex c, float x, float y, float z) {
+            int t;
+            if (freeCount != 0) {
+                t = free[--freeCount];
+            } else {
+                if (3 * bound == corners.length) {
+                    corners = Arrays.copyOf(corners, 2 * corners.length);
+                    rolling = Arrays.copyOf(rolling, 2 * rolling.length);
+                }
+                t = bound++;
+            }
+            corners[3 * t] = a;
+            corners[3 * t + 1] = b;
+            corners[3 * t + 2] = c;
+            rolling[3 * t] = x;
+            rolling[3 * t + 1] = y;
+            rolling[3 * t + 2] = z;
+            size++;
+            if (around != null) {
+                addAt(a, t);
+                addAt(b, t);
+                addAt(c, t);
+            }
+            return t;
         }
 
-        public FluentIterable<Vertex> vertices() {
-            return FluentIterable.from(asList(a, b, c));
+        void addAll(Triangles triangles) {
+            for (int t = 0; t < triangles.bound; t++) {
+                if (triangles.contains(t)) {
+                    Vertex[] c = triangles.corners;
+                    float[] r = triangles.rolling;
+                    add(c[3 * t], c[3 * t + 1], c[3 * t + 2], r[3 * t], r[3 * t + 1], r[3 * t + 2]);
+                }
+            }
         }
 
-        public List<Edge> edges() {
-            Vertex a = this.a, b = this.b, c = this.c;
-            return asList(new Edge(a, b), new Edge(b, c), new Edge(c, a));
+        void remove(int t) {
+            if (around != null) {
+                for (int i = 0; i < 3; i++) {
+                    removeAt(corners[3 * t + i], t);
+                }
+            }
+            Arrays.fill(corners, 3 * t, 3 * t + 3, null);
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, 2 * free.length);
+            }
+            free[freeCount++] = t;
+            size--;
+        }
+
+        void clear() {
+            Arrays.fill(corners, 0, 3 * bound, null);
+            bound = 0;
+            size = 0;
+            freeCount = 0;
+            if (around != null) {
+                around = new int[16][];
+                aroundCount = new int[16];
+            }
+        }
+
+        /** How many triangles are at V. */
+        int countAt(Vertex v) {
+            return v.id < aroundCount.length ? aroundCount[v.id] : 0;
+        }
+
+        /** The slot of the Ith triangle at V. */
+        int at(Vertex v, int i) {
+            return around[v.id][i];
+        }
+
+        private void addAt(Vertex v, int t) {
+            if (v.id >= around.length) {
+                int length = Math.max(v.id + 1, 2 * around.length);
+                around = Arrays.copyOf(around, length);
+                aroundCount = Arrays.copyOf(aroundCount, length);
+            }
+            int[] slots = around[v.id];
+            int count = aroundCount[v.id];
+            if (slots == null) {
+                slots = around[v.id] = new int[6];
+            } else if (count == slots.length) {
+                slots = around[v.id] = Arrays.copyOf(slots, 2 * count);
+            }
+            slots[count] = t;
+            aroundCount[v.id] = count + 1;
+        }
+
+        private void removeAt(Vertex v, int t) {
+            int[] slots = around[v.id];
+            int count = aroundCount[v.id];
+            for (int i = 0; i < count; i++) {
+                if (slots[i] == t) {
+                    slots[i] = slots[count - 1];
+                    aroundCount[v.id] = count - 1;
+                    return;
+                }
+            }
         }
 
     }
@@ -129,19 +832,28 @@ public final class Mesh {
 
             private final Vertex a, b;
             final Vec3 rollFrom;
+            final long edge;
+
+            /** Position of the edge along a space-filling curve through the grid's cells, or -1 until sorted. */
+            private long order = -1;
 
             private OpenEdge(Vertex a, Vertex b, Vec3 rollFrom) {
                 this.a = a;
                 this.b = b;
                 this.rollFrom = rollFrom;
+                this.edge = Mesh.edge(a, b);
             }
 
-            public Line3 line() {
-                return aToB(a, b);
+            /** Computed only when a sweep is sorted, since most edges never are. */
+            long order() {
+                if (order == -1) {
+                    order = SpatialHash.morton(midpoint(a.loc, b.loc), grid.cellSize());
+                }
+                return order;
             }
 
-            public Edge edge() {
-                return new Edge(a, b);
+            public Line3 line() {
+                return aToB(a, b);
             }
 
             public String toString() {
@@ -161,109 +873,209 @@ public final class Mesh {
 
         }
 
-        private Function<Vertex, RollingCollision> vertexCollisionWith(final Vec3 rolling) {
-            return new Function<Vertex, RollingCollision>() {
-                public RollingCollision apply(Vertex vertex) {
-                    return new RollingCollision(rolling, vertex);
-                }
-            };
-        }
-
-        final Balls<Vertex> balls;
-        List<Triangle> triangles = newArrayList();
+        final SpatialHash<Vertex> grid;
+        final LongSet closedEdges;
+        final Triangles triangles = new Triangles(false);
         List<Vertex> vertices = newArrayList();
-        Map<Edge, OpenEdge> openEdges = newHashMap();
-        Set<Edge> closedEdges = newHashSet();
-        float rollingRadius;
+        LongMap<OpenEdge> openEdges = new LongMap<OpenEdge>();
 
-        Builder(final Balls<Vertex> balls) {
+        /** Edges closed by other builders, which must not change while this one runs. */
+        LongSet alsoClosed;
 
-            this.balls = balls;
-            rollingRadius = balls.radius * rollingScale;
+        /** Open edges waiting to be pivoted over in the next sweep of the front. */
+        Queue<OpenEdge> pending = new ArrayDeque<OpenEdge>();
 
-            final Vertex a = Ordering.natural().onResultOf(new Function<Vertex, Float>() {
-                public Float apply(Vertex vertex) {
-                    return vertex.loc.z();
-                }
-            }).max(balls.balls);
+        /** If set, pivots onto vertices outside this tile are left open instead. */
+        Long tile;
+
+        /** If set, new edges lying wholly within one tile are left open instead of being pivoted. */
+        boolean stitching;
+
+        Builder(SpatialHash<Vertex> grid, LongSet closedEdges) {
+            this.grid = grid;
+            this.closedEdges = closedEdges;
+        }
+
+        /**
+         * Find a first triangle at A by placing an empty rolling ball on it, and open its three sides.
+         *
+         * Only the nearest few neighbors of A are tried, so that balls buried inside the
+         * sculpt, which have no empty ball to find, give up quickly.
+         */
+        void seed(final Vertex a) {
 
             vertices.add(a);
 
-            final RollingCollision collision = Approximation
-                .samplePointsAroundSphere(sphere(a, rollingRadius))
-                .transformAndConcat(new Function<Vec3, Iterable<RollingCollision>>() {
-                    public Iterable<RollingCollision> apply(final Vec3 rolling) {
-                        return FluentIterable
-                            .from(balls.balls)
-                            .filter(new Predicate<Vertex>() {
-                                public boolean apply(Vertex v) {
-                                    return v != a && distance(v, rolling) < rollingRadius;
-                                }
-                            })
-                            .transform(vertexCollisionWith(rolling));
+            // Any ball touching a rolling ball that touches A lies within the sum of their reaches of A.
+            final List<Vertex> nearbyVertices = grid.within(a, a.reach + maxReach);
+            nearbyVertices.remove(a);
+            List<Vertex> candidates = Ordering.natural().onResultOf(new Function<Vertex, Float>() {
+                public Float apply(Vertex v) {
+                    return distance(a, v);
+                }
+            }).leastOf(nearbyVertices, SEED_CANDIDATES);
+
+            for (Vertex b : candidates) {
+                List<Circle3> pivot = intersect(sphere(a, a.reach), sphere(b, b.reach));
+                if (pivot.isEmpty()) {
+                    continue;
+                }
+                for (Vertex c : candidates) {
+                    if (c == b || distance(b, c) >= b.reach + c.reach) {
+                        continue;
                     }
-                })
-                .first()
-                .orNull();
+                    List<Vec3> rollings = intersect(pivot.get(0), sphere(c, c.reach));
+                    if (rollings.size() == 2 && rollings.get(1).z() > rollings.get(0).z()) {
+                        rollings = Lists.reverse(rollings);
+                    }
+                    for (Vec3 rolling : rollings) {
+                        if (isEmpty(rolling, nearbyVertices)) {
+                            seed(a, b, c, rolling);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
 
-            if (collision == null) {
-                return;
+        /**
+         * Whether no vertex other than those the ball rests on lies inside it.
+         */
+        private boolean isEmpty(Vec3 rolling, List<Vertex> nearbyVertices) {
+            for (Vertex v : nearbyVertices) {
+                if (distance(rolling, v.loc) < v.reach * (1 - SEED_TOLERANCE)) {
+                    return false;
+                }
             }
+            return true;
+        }
+
+        private void seed(Vertex a, Vertex b, Vertex c, Vec3 rolling) {
 
-            final Vec3 rolling = collision.rolling;
-            final Vertex b = collision.vertex;
+            // Wind the triangle as tryEdge would, clockwise when seen from the rolling ball.
+            Vec3 normal = b.loc.sub(a.loc).cross(c.loc.sub(a.loc));
+            if (rolling.sub(a.loc).dot(normal) > 0) {
+                Vertex swap = b;
+                b = c;
+                c = swap;
+            }
 
             vertices.add(b);
-            tryEdge(new OpenEdge(a, b, rolling));
-            openEdges.put(new Edge(b, a), new OpenEdge(b, a, rolling));
+            vertices.add(c);
+            triangles.add(a, b, c, rolling);
+            open(b, a, rolling);
+            open(c, b, rolling);
+            open(a, c, rolling);
+        }
 
-            while (openEdges.size() != 0) {
+        void open(Vertex a, Vertex b, Vec3 rollFrom) {
+            OpenEdge openEdge = new OpenEdge(a, b, rollFrom);
+            openEdges.put(openEdge.edge, openEdge);
+            pending.add(openEdge);
+        }
 
-                Iterator<Entry<Edge,OpenEdge>> iterator = openEdges.entrySet().iterator();
-                OpenEdge openEdge = iterator.next().getValue();
-                iterator.remove();
-                tryEdge(openEdge);
-                closedEdges.add(openEdge.edge());
+        /**
+         * Add an edge to the front without pivoting over it, so that it is only there to be joined.
+         */
+        void openLater(Vertex a, Vertex b, Vec3 rollFrom) {
+            OpenEdge openEdge = new OpenEdge(a, b, rollFrom);
+            openEdges.put(openEdge.edge, openEdge);
+        }
 
-                if (Thread.interrupted()) {
+        /**
+         * Forget the open edges, once they have been handed to another builder.
+         */
+        void clearFront() {
+            openEdges.clear();
+            pending.clear();
+        }
+
+        boolean isClosed(long edge) {
+            return closedEdges.contains(edge) || (alsoClosed != null && alsoClosed.contains(edge));
+        }
+
+        /**
+         * Sweep the front until no open edges are pending, each sweep trying the edges opened
+         * by the one before. With sortedSweeps, a sweep goes in Morton order of the edges' cells,
+         * so that consecutive pivots mostly query the same few cells of the grid.
+         */
+        void run() {
+            while (pending.size() != 0) {
+                if (!sweep()) {
                     return;
                 }
             }
         }
 
-        void tryEdge(final OpenEdge openEdge) {
+        /**
+         * Try each pending edge once, leaving the edges that opens pending for the next sweep.
+         *
+         * @return false if time ran out or the thread was interrupted first
+         */
+        boolean sweep() {
+
+            OpenEdge[] sweep = pending.toArray(new OpenEdge[pending.size()]);
+            pending.clear();
+            if (sortedSweeps) {
+                Arrays.sort(sweep, BY_CURVE_ORDER);
+            }
 
-            final List<Vertex> nearbyVertices = ImmutableList.copyOf(
-                FluentIterable.from(balls.balls)
-                    .filter(new Predicate<Vertex>() {
-                        public boolean apply(Vertex v) {
-                            return distance(openEdge.a, v) < 2 * rollingRadius
-                                || distance(openEdge.b, v) < 2 * rollingRadius;
-                        }
-                    })
-            );
-
-            final RollingCollision collision = Approximation
-                .samplePointsAroundLine(openEdge.line(), openEdge.rollFrom)
-                .skip(3)
-                .transformAndConcat(new Function<Vec3, Iterable<RollingCollision>>() {
-                    public Iterable<RollingCollision> apply(final Vec3 rolling) {
-                        return FluentIterable
-                            .from(nearbyVertices)
-                            .filter(new Predicate<Vertex>() {
-                                public boolean apply(Vertex v) {
-                                    return v != openEdge.a && v != openEdge.b
-                                        && distance(v, rolling) < rollingRadius;
-                                }
-                            })
-                            .transform(vertexCollisionWith(rolling));
+            for (int i = 0; i < sweep.length; i++) {
+                OpenEdge openEdge = sweep[i];
+                if (openEdges.get(openEdge.edge) != openEdge) {
+                    continue;
+                }
+                if (tryEdge(openEdge)) {
+                    openEdges.remove(openEdge.edge);
+                    closedEdges.add(openEdge.edge);
+                }
+
+                if (outOfTime() || Thread.currentThread().isInterrupted()) {
+                    pending.addAll(asList(sweep).subList(i + 1, sweep.length));
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return false if the pivot was deferred, leaving the edge open
+         */
+        boolean tryEdge(final OpenEdge openEdge) {
+
+            // The rolling ball stays A's reach from A, so anything it can reach is within that plus its own reach.
+            final List<Vertex> nearbyVertices = grid.within(openEdge.a, openEdge.a.reach + maxReach);
+
+            // Every position of a ball touching both A and B lies on this circle.
+            List<Circle3> pivot = intersect(sphere(openEdge.a, openEdge.a.reach), sphere(openEdge.b, openEdge.b.reach));
+            if (pivot.isEmpty()) {
+                return true;
+            }
+
+            Line3 axis = openEdge.line();
+            RollingCollision collision = null;
+            float collisionAngle = 0;
+
+            for (Vertex v : nearbyVertices) {
+                if (v == openEdge.a || v == openEdge.b || distance(openEdge.b, v) >= openEdge.b.reach + v.reach) {
+                    continue;
+                }
+                for (Vec3 rolling : intersect(pivot.get(0), sphere(v, v.reach))) {
+                    float angle = angleAroundLine(axis, openEdge.rollFrom, rolling);
+                    if (angle > MIN_PIVOT_ANGLE && angle < 2 * PI - MIN_PIVOT_ANGLE
+                            && (collision == null || angle < collisionAngle)) {
+                        collision = new RollingCollision(rolling, v);
+                        collisionAngle = angle;
                     }
-                })
-                .first()
-                .orNull();
+                }
+            }
 
             if (collision == null) {
-                return;
+                return true;
+            }
+
+            if (tile != null && tileOf(collision.vertex) != tile) {
+                return false;
             }
 
             vertices.add(collision.vertex);
@@ -272,16 +1084,20 @@ public final class Mesh {
                 new OpenEdge(openEdge.a, collision.vertex, collision.rolling),
                 new OpenEdge(collision.vertex, openEdge.b, collision.rolling)
             )) {
-                if (!closedEdges.contains(nextEdge.edge())) {
-                    if (openEdges.remove(nextEdge.edge()) != null) {
-                        closedEdges.add(nextEdge.edge());
+                if (!isClosed(nextEdge.edge)) {
+                    if (openEdges.remove(nextEdge.edge) != null) {
+                        closedEdges.add(nextEdge.edge);
                     } else {
-                        openEdges.put(nextEdge.edge(), nextEdge);
+                        openEdges.put(nextEdge.edge, nextEdge);
+                        if (!stitching || tileOf(nextEdge.a) != tileOf(nextEdge.b)) {
+                            pending.add(nextEdge);
+                        }
                     }
                 }
             }
 
-            triangles.add(new Triangle(openEdge.a, openEdge.b, collision.vertex));
+            triangles.add(openEdge.a, openEdge.b, collision.vertex, collision.rolling);
+            return true;
         }
 
     }
@@ -0,0 +1,410 @@
+package spray;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Reduces a mesh by repeatedly collapsing the edge whose removal moves the surface least,
+ * measuring the move with the quadric error metric of Garland and Heckbert: the sum of
+ * squared distances from a vertex to the planes of the original triangles merged into it.
+ *
+ * Collapses that would fold a triangle over, or join two sheets of the surface at a
+ * vertex, are skipped. Boundary edges are held in place by planes perpendicular to them.
+ */
+public final class Simplification {
+
+    /** How much more a boundary edge's plane counts than a triangle's, to keep outlines from shrinking. */
+    private static final double BOUNDARY_WEIGHT = 100;
+
+    private final double[] positions;
+    private final double[] quadrics;
+    private final int[] versions;
+    private final boolean[] collapsed;
+
+    private final int[] triangles;
+    private final HalfEdges edges;
+    private final boolean[] removed;
+    private int triangleCount;
+
+    /** The triangles around each vertex, some of which may have been removed since. */
+    private final int[][] around;
+    private final int[] aroundCount;
+
+    private final PriorityQueue<Collapse> queue = new PriorityQueue<Collapse>();
+
+    private Simplification(IndexedMesh mesh) {
+        int n = mesh.vertexCount();
+        positions = new double[n * 3];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = mesh.positions[i];
+        }
+        quadrics = new double[n * 10];
+        versions = new int[n];
+        collapsed = new boolean[n];
+        triangles = mesh.indices.clone();
+        edges = mesh.halfEdges();
+        triangleCount = mesh.triangleCount();
+        removed = new boolean[triangleCount];
+
+        aroundCount = new int[n];
+        for (int v : triangles) {
+            aroundCount[v]++;
+        }
+        around = new int[n][];
+        for (int v = 0; v < n; v++) {
+            around[v] = new int[Math.max(4, aroundCount[v])];
+            aroundCount[v] = 0;
+        }
+        for (int i = 0; i < triangles.length; i++) {
+            int v = triangles[i];
+            around[v][aroundCount[v]++] = i / 3;
+        }
+    }
+
+    /**
+     * Collapse edges until at most the target number of triangles remain, or until every
+     * remaining collapse would move the surface by more than the error bound.
+     *
+     * @param maxError a distance; collapses whose summed squared distances exceed its square are not made
+     */
+    public static IndexedMesh simplify(IndexedMesh mesh, int targetTriangles, float maxError) {
+        Simplification simplification = new Simplification(mesh);
+        simplification.run(targetTriangles, (double) maxError * maxError);
+        return simplification.result();
+    }
+
+    private void run(int targetTriangles, double maxCost) {
+
+        for (int t = 0; t < triangles.length / 3; t++) {
+            addPlane(t);
+        }
+        // Edges without a twin are held in place, whether they bound the surface or join more than two triangles.
+        for (int h = 0; h < edges.halfEdgeCount(); h++) {
+            int twin = edges.twin[h];
+            if (twin == -1) {
+                addBoundaryPlane(HalfEdges.triangle(h), edges.vertex[h], edges.head(h));
+            }
+            if (twin == -1 || h < twin) {
+                offer(edges.vertex[h], edges.head(h));
+            }
+        }
+
+        while (triangleCount > targetTriangles && !queue.isEmpty()) {
+            Collapse c = queue.poll();
+            if (c.cost > maxCost) {
+                break;
+            }
+            if (collapsed[c.u] || collapsed[c.v] || versions[c.u] != c.versionU || versions[c.v] != c.versionV) {
+                continue;
+            }
+            if (!isSafe(c)) {
+                continue;
+            }
+            collapse(c);
+        }
+    }
+
+    private IndexedMesh result() {
+        int[] numbers = new int[versions.length];
+        Arrays.fill(numbers, -1);
+        float[] newPositions = new float[versions.length * 3];
+        int[] newIndices = new int[triangleCount * 3];
+        int vertexCount = 0, indexCount = 0;
+        for (int t = 0; t < removed.length; t++) {
+            if (removed[t]) {
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                int v = triangles[3 * t + k];
+                if (numbers[v] == -1) {
+                    numbers[v] = vertexCount;
+                    for (int axis = 0; axis < 3; axis++) {
+                        newPositions[3 * vertexCount + axis] = (float) positions[3 * v + axis];
+                    }
+                    vertexCount++;
+                }
+                newIndices[indexCount++] = numbers[v];
+            }
+        }
+        return new IndexedMesh(Arrays.copyOf(newPositions, vertexCount * 3), newIndices);
+    }
+
+    /**
+     * Adds the plane of the triangle to its corners' quadrics.
+     */
+    private void addPlane(int t) {
+        double[] n = normal(triangles[3 * t], triangles[3 * t + 1], triangles[3 * t + 2], -1, 0, 0, 0);
+        double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+        if (length == 0) {
+            return;
+        }
+        int a = triangles[3 * t];
+        double nx = n[0] / length, ny = n[1] / length, nz = n[2] / length;
+        double d = -(nx * positions[3 * a] + ny * positions[3 * a + 1] + nz * positions[3 * a + 2]);
+        for (int k = 0; k < 3; k++) {
+            addQuadric(triangles[3 * t + k], nx, ny, nz, d, 1);
+        }
+    }
+
+    /**
+     * Adds the plane through the edge AB of the triangle, perpendicular to the triangle, to A and B.
+     */
+    private void addBoundaryPlane(int t, int a, int b) {
+        double[] n = normal(triangles[3 * t], triangles[3 * t + 1], triangles[3 * t + 2], -1, 0, 0, 0);
+        double ex = positions[3 * b] - positions[3 * a];
+        double ey = positions[3 * b + 1] - positions[3 * a + 1];
+        double ez = positions[3 * b + 2] - positions[3 * a + 2];
+        double px = ey * n[2] - ez * n[1], py = ez * n[0] - ex * n[2], pz = ex * n[1] - ey * n[0];
+        double length = Math.sqrt(px * px + py * py + pz * pz);
+        if (length == 0) {
+            return;
+        }
+        px /= length;
+        py /= length;
+        pz /= length;
+        double d = -(px * positions[3 * a] + py * positions[3 * a + 1] + pz * positions[3 * a + 2]);
+        addQuadric(a, px, py, pz, d, BOUNDARY_WEIGHT);
+        addQuadric(b, px, py, pz, d, BOUNDARY_WEIGHT);
+    }
+
+    private void addQuadric(int v, double a, double b, double c, double d, double weight) {
+        double[] q = quadrics;
+        int i = 10 * v;
+        q[i] += weight * a * a;
+        q[i + 1] += weight * a * b;
+        q[i + 2] += weight * a * c;
+        q[i + 3] += weight * a * d;
+        q[i + 4] += weight * b * b;
+        q[i + 5] += weight * b * c;
+        q[i + 6] += weight * b * d;
+        q[i + 7] += weight * c * c;
+        q[i + 8] += weight * c * d;
+        q[i + 9] += weight * d * d;
+    }
+
+    /**
+     * Queues the collapse of the edge UV to the point minimizing their summed quadrics.
+     */
+    private void offer(int u, int v) {
+
+        double[] q = new double[10];
+        for (int i = 0; i < 10; i++) {
+            q[i] = quadrics[10 * u + i] + quadrics[10 * v + i];
+        }
+
+        double[] best = null;
+        double bestCost = Double.POSITIVE_INFINITY;
+
+        // Try the ends and middle of the edge.
+        for (int k = 0; k < 3; k++) {
+            double t = k / 2.0;
+            double x = positions[3 * u] + t * (positions[3 * v] - positions[3 * u]);
+            double y = positions[3 * u + 1] + t * (positions[3 * v + 1] - positions[3 * u + 1]);
+            double z = positions[3 * u + 2] + t * (positions[3 * v + 2] - positions[3 * u + 2]);
+            double cost = cost(q, x, y, z);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = new double[]{ x, y, z };
+            }
+        }
+
+        // Try the quadric's minimum too, unless it is too flat for the minimum to be unique,
+        // or the minimum lies far enough from the edge to stretch the triangles around it.
+        double det = q[0] * (q[4] * q[7] - q[5] * q[5]) - q[1] * (q[1] * q[7] - q[5] * q[2])
+            + q[2] * (q[1] * q[5] - q[4] * q[2]);
+        if (Math.abs(det) > 1e-9) {
+            double x = -(q[3] * (q[4] * q[7] - q[5] * q[5]) - q[1] * (q[6] * q[7] - q[5] * q[8])
+                + q[2] * (q[6] * q[5] - q[4] * q[8])) / det;
+            double y = -(q[0] * (q[6] * q[7] - q[8] * q[5]) - q[3] * (q[1] * q[7] - q[5] * q[2])
+                + q[2] * (q[1] * q[8] - q[6] * q[2])) / det;
+            double z = -(q[0] * (q[4] * q[8] - q[5] * q[6]) - q[1] * (q[1] * q[8] - q[6] * q[2])
+                + q[3] * (q[1] * q[5] - q[4] * q[2])) / det;
+            double cost = cost(q, x, y, z);
+            double mx = (positions[3 * u] + positions[3 * v]) / 2 - x;
+            double my = (positions[3 * u + 1] + positions[3 * v + 1]) / 2 - y;
+            double mz = (positions[3 * u + 2] + positions[3 * v + 2]) / 2 - z;
+            double ex = positions[3 * v] - positions[3 * u];
+            double ey = positions[3 * v + 1] - positions[3 * u + 1];
+            double ez = positions[3 * v + 2] - positions[3 * u + 2];
+            if (cost < bestCost && mx * mx + my * my + mz * mz <= ex * ex + ey * ey + ez * ez) {
+                bestCost = cost;
+                best = new double[]{ x, y, z };
+            }
+        }
+
+        queue.add(new Collapse(u, v, versions[u], versions[v], Math.max(0, bestCost), best));
+    }
+
+    private static double cost(double[] q, double x, double y, double z) {
+        return q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2 * q[3] * x
+            + q[4] * y * y + 2 * q[5] * y * z + 2 * q[6] * y
+            + q[7] * z * z + 2 * q[8] * z + q[9];
+    }
+
+    /**
+     * Whether the collapse keeps the surface a manifold near the edge and turns no triangle over.
+     */
+    private boolean isSafe(Collapse c) {
+
+        // The vertices adjacent to both ends must be exactly those opposite the edge.
+        LongSet neighborsOfU = new LongSet();
+        for (int i = 0; i < aroundCount[c.u]; i++) {
+            int t = around[c.u][i];
+            if (!removed[t]) {
+                for (int k = 0; k < 3; k++) {
+                    neighborsOfU.add(triangles[3 * t + k]);
+                }
+            }
+        }
+        LongSet shared = new LongSet();
+        int opposite = 0;
+        for (int i = 0; i < aroundCount[c.v]; i++) {
+            int t = around[c.v][i];
+            if (removed[t]) {
+                continue;
+            }
+            boolean hasU = false;
+            for (int k = 0; k < 3; k++) {
+                int w = triangles[3 * t + k];
+                hasU |= w == c.u;
+                if (w != c.u && w != c.v && neighborsOfU.contains(w)) {
+                    shared.add(w);
+                }
+            }
+            if (hasU) {
+                opposite++;
+            }
+        }
+        if (shared.size() != opposite) {
+            return false;
+        }
+
+        return keepsFacing(c.u, c.v, c) && keepsFacing(c.v, c.u, c);
+    }
+
+    /**
+     * Whether each triangle around the moving vertex, but not on the edge to the other, keeps its side.
+     */
+    private boolean keepsFacing(int moving, int other, Collapse c) {
+        for (int i = 0; i < aroundCount[moving]; i++) {
+            int t = around[moving][i];
+            if (removed[t]) {
+                continue;
+            }
+            int a = triangles[3 * t], b = triangles[3 * t + 1], d = triangles[3 * t + 2];
+            if (a == other || b == other || d == other) {
+                continue;
+            }
+            double[] before = normal(a, b, d, -1, 0, 0, 0);
+            double[] after = normal(a, b, d, moving, c.x, c.y, c.z);
+            if (before[0] * after[0] + before[1] * after[1] + before[2] * after[2] <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The cross product (b - a) x (c - a), with the vertex numbered moved placed at x, y, z.
+     */
+    private double[] normal(int a, int b, int c, int moved, double x, double y, double z) {
+        double[] p = new double[9];
+        int[] corners = { a, b, c };
+        for (int k = 0; k < 3; k++) {
+            if (corners[k] == moved) {
+                p[3 * k] = x;
+                p[3 * k + 1] = y;
+                p[3 * k + 2] = z;
+            } else {
+                System.arraycopy(positions, 3 * corners[k], p, 3 * k, 3);
+            }
+        }
+        double abx = p[3] - p[0], aby = p[4] - p[1], abz = p[5] - p[2];
+        double acx = p[6] - p[0], acy = p[7] - p[1], acz = p[8] - p[2];
+        return new double[]{ aby * acz - abz * acy, abz * acx - abx * acz, abx * acy - aby * acx };
+    }
+
+    /**
+     * Merges V into U at the collapse's point, dropping the triangles on the edge.
+     */
+    private void collapse(Collapse c) {
+        int u = c.u, v = c.v;
+
+        for (int i = 0; i < aroundCount[v]; i++) {
+            int t = around[v][i];
+            if (removed[t]) {
+                continue;
+            }
+            if (triangles[3 * t] == u || triangles[3 * t + 1] == u || triangles[3 * t + 2] == u) {
+                removed[t] = true;
+                triangleCount--;
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                if (triangles[3 * t + k] == v) {
+                    triangles[3 * t + k] = u;
+                }
+            }
+            addAround(u, t);
+        }
+
+        positions[3 * u] = c.x;
+        positions[3 * u + 1] = c.y;
+        positions[3 * u + 2] = c.z;
+        for (int i = 0; i < 10; i++) {
+            quadrics[10 * u + i] += quadrics[10 * v + i];
+        }
+        collapsed[v] = true;
+        versions[u]++;
+
+        // Drop removed triangles from U's list, and queue its edges again at their new costs.
+        int kept = 0;
+        LongSet offered = new LongSet();
+        for (int i = 0; i < aroundCount[u]; i++) {
+            int t = around[u][i];
+            if (removed[t]) {
+                continue;
+            }
+            around[u][kept++] = t;
+            for (int k = 0; k < 3; k++) {
+                int w = triangles[3 * t + k];
+                if (w != u && offered.add(w)) {
+                    offer(u, w);
+                }
+            }
+        }
+        aroundCount[u] = kept;
+    }
+
+    private void addAround(int v, int t) {
+        if (aroundCount[v] == around[v].length) {
+            around[v] = Arrays.copyOf(around[v], around[v].length * 2);
+        }
+        around[v][aroundCount[v]++] = t;
+    }
+
+    private static final class Collapse implements Comparable<Collapse> {
+
+        final int u, v;
+        final int versionU, versionV;
+        final double cost;
+        final double x, y, z;
+
+        Collapse(int u, int v, int versionU, int versionV, double cost, double[] point) {
+            this.u = u;
+            this.v = v;
+            this.versionU = versionU;
+            this.versionV = versionV;
+            this.cost = cost;
+            this.x = point[0];
+            this.y = point[1];
+            this.z = point[2];
+        }
+
+        public int compareTo(Collapse o) {
+            return Double.compare(cost, o.cost);
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+package spray;
+
+import java.util.List;
+
+import spray.Geometry.IsVec3;
+import spray.Geometry.Vec3;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static spray.Geometry.distance;
+
+/**
+ * A uniform grid that buckets points by the cube of space containing them,
+ * so that fixed-radius neighbor queries only look at nearby cells.
+ */
+public final class SpatialHash<V extends IsVec3> {
+
+    private final float cellSize;
+
+    private final LongMap<List<V>> cells = new LongMap<List<V>>();
+
+    private int size;
+
+    public SpatialHash(float cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public SpatialHash(float cellSize, Iterable<? extends V> points) {
+        this(cellSize);
+        for (V point : points) {
+            add(point);
+        }
+    }
+
+    public float cellSize() {
+        return cellSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(V point) {
+        long key = key(point.asVec3());
+        List<V> cell = cells.get(key);
+        if (cell == null) {
+            cell = newArrayList();
+            cells.put(key, cell);
+        }
+        cell.add(point);
+        size++;
+    }
+
+    public boolean remove(V point) {
+        long key = key(point.asVec3());
+        List<V> cell = cells.get(key);
+        if (cell == null || !cell.remove(point)) {
+            return false;
+        }
+        if (cell.isEmpty()) {
+            cells.remove(key);
+        }
+        size--;
+        return true;
+    }
+
+    /**
+     * All points strictly closer than the radius to the center.
+     */
+    public List<V> within(IsVec3 center, float radius) {
+        Vec3 c = center.asVec3();
+        List<V> result = newArrayList();
+        int x0 = cell(c.x() - radius), x1 = cell(c.x() + radius);
+        int y0 = cell(c.y() - radius), y1 = cell(c.y() + radius);
+        int z0 = cell(c.z() - radius), z1 = cell(c.z() + radius);
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                for (int z = z0; z <= z1; z++) {
+                    List<V> cell = cells.get(key(x, y, z));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (V point : cell) {
+                        if (distance(c, point.asVec3()) < radius) {
+                            result.add(point);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private int cell(float coordinate) {
+        return cell(coordinate, cellSize);
+    }
+
+    private long key(Vec3 p) {
+        return key(cell(p.x()), cell(p.y()), cell(p.z()));
+    }
+
+    private static int cell(float coordinate, float cellSize) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    /**
+     * Identifies the cube of the given size containing the point.
+     */
+    public static long cell(IsVec3 point, float cellSize) {
+        Vec3 p = point.asVec3();
+        return key(cell(p.x(), cellSize), cell(p.y(), cellSize), cell(p.z(), cellSize));
+    }
+
+    /**
+     * Orders cubes of the given size along a Z-order curve, so that points
+     * with nearby codes tend to lie near each other.
+     */
+    public static long morton(IsVec3 point, float cellSize) {
+        Vec3 p = point.asVec3();
+        return spread(cell(p.x(), cellSize)) << 2 | spread(cell(p.y(), cellSize)) << 1 | spread(cell(p.z(), cellSize));
+    }
+
+    /**
+     * The low 21 bits of the coordinate, offset to be unsigned, with two zero bits after each.
+     */
+    private static long spread(int coordinate) {
+        long x = (coordinate + 0x100000) & 0x1fffffL;
+        x = (x | x << 32) & 0x1f00000000ffffL;
+        x = (x | x << 16) & 0x1f0000ff0000ffL;
+        x = (x | x << 8) & 0x100f00f00f00f00fL;
+        x = (x | x << 4) & 0x10c30c30c30c30c3L;
+        x = (x | x << 2) & 0x1249249249249249L;
+        return x;
+    }
+
+    static long key(int x, int y, int z) {
+        return ((long) (x & 0x1fffff) << 42) | ((long) (y & 0x1fffff) << 21) | (z & 0x1fffff);
+    }
+
+}
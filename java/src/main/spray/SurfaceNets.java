@@ -0,0 +1,263 @@
+package spray;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static spray.DistanceField.CHUNK;
+import static spray.DistanceField.CHUNK_SHIFT;
+import static spray.DistanceField.MASK;
+import static spray.DistanceField.index;
+
+/**
+ * Meshes balls as the surface of their union, by sampling its distance field on a
+ * grid and joining the sign changes with surface nets. Unlike ball pivoting, the
+ * cost depends only on the volume the balls occupy, not on how densely they pack.
+ *
+ * The field is stored sparsely in cubic chunks, and only chunks near a ball are
+ * allocated. Each pass over the chunks runs in parallel.
+ */
+public final class SurfaceNets {
+
+    /** The spacing of the grid, in ball radii. */
+    public static float cellScale = 1f;
+
+    private SurfaceNets() { }
+
+    /**
+     * The triangles of the union's surface, wound like those of Mesh.
+     */
+    public static IndexedMesh mesh(Balls balls) throws InterruptedException {
+        return mesh(DistanceField.of(balls, balls.radius * cellScale));
+    }
+
+    /**
+     * The triangles of the field's zero set, facing toward negative distances like those of Mesh.
+     */
+    public static IndexedMesh mesh(final DistanceField field) throws InterruptedException {
+
+        // A cube belongs to the chunk of its least corner, so the chunks just below
+        // each chunk of the field can hold vertices too.
+        final LongMap<Chunk> chunks = new LongMap<Chunk>();
+        final List<Chunk> order = newArrayList();
+        for (DistanceField.Chunk samples : field.chunks()) {
+            for (int below = 0; below < 8; below++) {
+                int x = samples.x - (below & 1), y = samples.y - (below >> 1 & 1), z = samples.z - (below >> 2);
+                long key = SpatialHash.key(x, y, z);
+                if (chunks.get(key) == null) {
+                    Chunk chunk = new Chunk(x, y, z, field.chunk(x, y, z));
+                    chunks.put(key, chunk);
+                    order.add(chunk);
+                }
+            }
+        }
+
+        List<Callable<Object>> place = newArrayList();
+        for (final Chunk chunk : order) {
+            place.add(new Callable<Object>() {
+                public Object call() {
+                    chunk.placeVertices(field);
+                    return null;
+                }
+            });
+        }
+        Tasks.invokeAll(Mesh.pool, place);
+
+        int vertexCount = 0;
+        for (Chunk chunk : order) {
+            chunk.firstVertex = vertexCount;
+            vertexCount += chunk.vertexCount;
+        }
+
+        List<Callable<Object>> join = newArrayList();
+        for (final Chunk chunk : order) {
+            join.add(new Callable<Object>() {
+                public Object call() {
+                    chunk.joinVertices(field, chunks);
+                    return null;
+                }
+            });
+        }
+        Tasks.invokeAll(Mesh.pool, join);
+
+        int indexCount = 0;
+        for (Chunk chunk : order) {
+            indexCount += chunk.indexCount;
+        }
+        float[] positions = new float[vertexCount * 3];
+        int[] indices = new int[indexCount];
+        indexCount = 0;
+        for (Chunk chunk : order) {
+            System.arraycopy(chunk.positions, 0, positions, chunk.firstVertex * 3, chunk.vertexCount * 3);
+            System.arraycopy(chunk.indices, 0, indices, indexCount, chunk.indexCount);
+            indexCount += chunk.indexCount;
+        }
+        return new IndexedMesh(positions, indices);
+    }
+
+    /** The corners at either end of each edge of a cube, numbered x | y << 1 | z << 2. */
+    private static final int[][] CUBE_EDGES = {
+        { 0, 1 }, { 2, 3 }, { 4, 5 }, { 6, 7 },
+        { 0, 2 }, { 1, 3 }, { 4, 6 }, { 5, 7 },
+        { 0, 4 }, { 1, 5 }, { 2, 6 }, { 3, 7 }
+    };
+
+    /**
+     * The part of the mesh in the cubes whose least corners lie in one chunk of the field.
+     */
+    private static final class Chunk {
+
+        /** Position of the chunk, in chunks. */
+        final int x, y, z;
+
+        /** The field's samples in the chunk, or null if it has none. */
+        final DistanceField.Chunk samples;
+
+        /** For the cube whose least corner is each grid point, the number of its vertex within the chunk, or -1. */
+        int[] cubeVertices;
+
+        float[] positions = new float[0];
+        int vertexCount;
+        int firstVertex;
+
+        int[] indices = new int[0];
+        int indexCount;
+
+        Chunk(int x, int y, int z, DistanceField.Chunk samples) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.samples = samples;
+        }
+
+        /**
+         * Put a vertex in every cube that the surface crosses, at the mean of the points where it
+         * crosses the cube's edges.
+         */
+        void placeVertices(DistanceField field) {
+            cubeVertices = new int[CHUNK * CHUNK * CHUNK];
+            Arrays.fill(cubeVertices, -1);
+            float step = field.step();
+            int ox = x << CHUNK_SHIFT, oy = y << CHUNK_SHIFT, oz = z << CHUNK_SHIFT;
+            float[] corners = new float[8];
+            for (int k = 0; k < CHUNK; k++) {
+                for (int j = 0; j < CHUNK; j++) {
+                    for (int i = 0; i < CHUNK; i++) {
+
+                        // Without samples of its own, only the chunk's upper faces touch the field.
+                        if (samples == null && i < MASK && j < MASK && k < MASK) {
+                            continue;
+                        }
+
+                        int inside = 0;
+                        for (int c = 0; c < 8; c++) {
+                            int ci = i + (c & 1), cj = j + (c >> 1 & 1), ck = k + (c >> 2);
+                            corners[c] = samples != null && ci < CHUNK && cj < CHUNK && ck < CHUNK
+                                ? samples.values[index(ci, cj, ck)]
+                                : field.value(ox + ci, oy + cj, oz + ck);
+                            if (corners[c] < 0) {
+                                inside++;
+                            }
+                        }
+                        if (inside == 0 || inside == 8) {
+                            continue;
+                        }
+
+                        float sx = 0, sy = 0, sz = 0;
+                        int crossings = 0;
+                        for (int[] edge : CUBE_EDGES) {
+                            float a = corners[edge[0]], b = corners[edge[1]];
+                            if ((a < 0) == (b < 0)) {
+                                continue;
+                            }
+                            float t = a / (a - b);
+                            sx += (edge[0] & 1) + t * ((edge[1] & 1) - (edge[0] & 1));
+                            sy += (edge[0] >> 1 & 1) + t * ((edge[1] >> 1 & 1) - (edge[0] >> 1 & 1));
+                            sz += (edge[0] >> 2) + t * ((edge[1] >> 2) - (edge[0] >> 2));
+                            crossings++;
+                        }
+
+                        if (positions.length < (vertexCount + 1) * 3) {
+                            positions = Arrays.copyOf(positions, Math.max(48, positions.length * 2));
+                        }
+                        positions[vertexCount * 3] = (ox + i + sx / crossings) * step;
+                        positions[vertexCount * 3 + 1] = (oy + j + sy / crossings) * step;
+                        positions[vertexCount * 3 + 2] = (oz + k + sz / crossings) * step;
+                        cubeVertices[index(i, j, k)] = vertexCount++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Join the vertices of the four cubes around every grid edge that the surface crosses,
+         * for the edges leading from each grid point in the chunk along each axis.
+         */
+        void joinVertices(DistanceField field, LongMap<Chunk> chunks) {
+            // Every grid point in a chunk without samples is outside, and so are its neighbors.
+            if (samples == null) {
+                return;
+            }
+            int ox = x << CHUNK_SHIFT, oy = y << CHUNK_SHIFT, oz = z << CHUNK_SHIFT;
+            int[] p = new int[3];
+            for (int k = 0; k < CHUNK; k++) {
+                for (int j = 0; j < CHUNK; j++) {
+                    for (int i = 0; i < CHUNK; i++) {
+                        boolean inside = samples.values[index(i, j, k)] < 0;
+                        for (int axis = 0; axis < 3; axis++) {
+                            p[0] = ox + i;
+                            p[1] = oy + j;
+                            p[2] = oz + k;
+                            p[axis]++;
+                            if (inside == field.value(p[0], p[1], p[2]) < 0) {
+                                continue;
+                            }
+                            p[axis]--;
+                            join(chunks, p, axis, inside);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Add the quad around the edge from the point along the axis, facing into the balls.
+         */
+        private void join(LongMap<Chunk> chunks, int[] p, int axis, boolean inside) {
+            // The two other axes, in the order that makes the quad face along this one.
+            int u = (axis + 1) % 3, v = (axis + 2) % 3;
+            int[] quad = new int[4];
+            for (int corner = 0; corner < 4; corner++) {
+                int[] cube = p.clone();
+                cube[u] -= (corner == 0 || corner == 3) ? 1 : 0;
+                cube[v] -= corner < 2 ? 1 : 0;
+                quad[corner] = vertexOf(chunks, cube);
+            }
+            if (inside) {
+                addTriangle(quad[0], quad[2], quad[1]);
+                addTriangle(quad[0], quad[3], quad[2]);
+            } else {
+                addTriangle(quad[0], quad[1], quad[2]);
+                addTriangle(quad[0], quad[2], quad[3]);
+            }
+        }
+
+        private static int vertexOf(LongMap<Chunk> chunks, int[] cube) {
+            Chunk chunk = chunks.get(SpatialHash.key(
+                cube[0] >> CHUNK_SHIFT, cube[1] >> CHUNK_SHIFT, cube[2] >> CHUNK_SHIFT));
+            return chunk.firstVertex + chunk.cubeVertices[index(cube[0] & MASK, cube[1] & MASK, cube[2] & MASK)];
+        }
+
+        private void addTriangle(int a, int b, int c) {
+            if (indices.length < indexCount + 3) {
+                indices = Arrays.copyOf(indices, Math.max(48, indices.length * 2));
+            }
+            indices[indexCount++] = a;
+            indices[indexCount++] = b;
+            indices[indexCount++] = c;
+        }
+
+    }
+
+}
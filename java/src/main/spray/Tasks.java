@@ -0,0 +1,31 @@
+package spray;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Runs a batch of tasks on a pool and waits for all of them.
+ */
+final class Tasks {
+
+    private Tasks() { }
+
+    /**
+     * Run the tasks and wait for them, rethrowing the first failure as it was thrown.
+     */
+    static void invokeAll(ExecutorService pool, List<Callable<Object>> tasks) throws InterruptedException {
+        try {
+            for (Future<Object> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+}
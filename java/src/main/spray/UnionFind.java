@@ -0,0 +1,43 @@
+package spray;
+
+/**
+ * Disjoint sets over the integers 0 to n - 1, with union by rank and path halving.
+ */
+final class UnionFind {
+
+    private final int[] parent;
+    private final byte[] rank;
+
+    UnionFind(int n) {
+        parent = new int[n];
+        rank = new byte[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+    }
+
+    int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    void union(int i, int j) {
+        i = find(i);
+        j = find(j);
+        if (i == j) {
+            return;
+        }
+        if (rank[i] < rank[j]) {
+            parent[i] = j;
+        } else if (rank[i] > rank[j]) {
+            parent[j] = i;
+        } else {
+            parent[j] = i;
+            rank[i]++;
+        }
+    }
+
+}
@@ -0,0 +1,260 @@
+package spray;
+
+import org.testng.annotations.Test;
+import spray.Geometry.Line3;
+import spray.Geometry.Sphere;
+import spray.Geometry.Vec3;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static spray.Geometry.aToB;
+import static spray.Geometry.distance;
+import static spray.Geometry.sphere;
+import static spray.Geometry.xyz;
+
+public class BallsTest {
+
+    @Test
+    public void testRaySearch() {
+        Random random = new Random(1);
+        List<Sphere> spheres = newArrayList();
+        Balls balls = new Balls();
+        for (int i = 0; i < 2000; i++) {
+            // Mostly small balls, with a few big enough to land in higher levels of the index.
+            float radius = i % 50 == 0 ? 20 + random.nextFloat() * 40 : 1 + random.nextFloat() * 8;
+            Sphere ball = sphere(xyz(random.nextFloat() * 400 - 200, random.nextFloat() * 400 - 200,
+                random.nextFloat() * 400 - 200), radius);
+            spheres.add(ball);
+            // Ids are handed out in order, so each ball's id is its index in the list.
+            balls.add(ball.center(), ball.radius());
+        }
+        for (int i = 0; i < 500; i++) {
+            Line3 ray = aToB(
+                xyz(random.nextFloat() * 1000 - 500, random.nextFloat() * 1000 - 500, random.nextFloat() * 1000 - 500),
+                xyz(random.nextFloat() * 400 - 200, random.nextFloat() * 400 - 200, random.nextFloat() * 400 - 200));
+            assertEquals(balls.raySearch(ray), bruteForce(spheres, ray));
+        }
+    }
+
+    @Test
+    public void testRemove() {
+        Balls balls = new Balls();
+        int near = balls.add(xyz(0, 0, 50)), far = balls.add(xyz(0, 0, 100));
+        Line3 ray = aToB(xyz(0, 0, 0), xyz(0, 0, 1));
+        assertEquals(balls.raySearch(ray), near);
+        balls.remove(near);
+        assertEquals(balls.raySearch(ray), far);
+        // Nothing behind the start of the ray is hit.
+        assertEquals(balls.raySearch(aToB(xyz(0, 0, 0), xyz(0, 0, -1))), -1);
+    }
+
+    @Test
+    public void testIds() {
+        Balls balls = new Balls();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(balls.add(xyz(i, 0, 0)), i);
+        }
+        assertTrue(balls.remove(40));
+        assertFalse(balls.remove(40));
+        assertFalse(balls.contains(40));
+        assertEquals(balls.size(), 99);
+
+        // The other balls keep their ids, and the freed one is used again.
+        assertEquals(balls.center(41), xyz(41, 0, 0));
+        assertEquals(balls.add(xyz(-1, 0, 0)), 40);
+        assertEquals(balls.center(40), xyz(-1, 0, 0));
+        assertEquals(balls.idBound(), 100);
+        assertEquals(newArrayList(balls.spheres()).size(), 100);
+    }
+
+    @Test
+    public void testSnapshot() {
+        Balls balls = new Balls();
+        for (int i = 0; i < 3000; i++) {
+            balls.add(xyz(20 * i, 0, 0));
+        }
+        Balls snapshot = balls.snapshot();
+        balls.remove(5);
+        balls.add(xyz(0, 50, 0));
+        balls.add(xyz(0, 100, 0));
+
+        assertEquals(snapshot.size(), 3000);
+        assertEquals(snapshot.center(5), xyz(100, 0, 0));
+        assertEquals(snapshot.idBound(), 3000);
+        assertEquals(snapshot.raySearch(aToB(xyz(100, -100, 0), xyz(100, 0, 0))), 5);
+        assertEquals(balls.center(5), xyz(0, 50, 0));
+        assertEquals(balls.idBound(), 3001);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testSnapshotCannotChange() {
+        new Balls().snapshot().add(xyz(0, 0, 0));
+    }
+
+    @Test
+    public void testChanges() {
+        Balls balls = new Balls();
+        int a = balls.add(xyz(0, 0, 0));
+        long start = balls.version();
+
+        int b = balls.add(xyz(1, 0, 0));
+        balls.remove(b);
+        int c = balls.add(xyz(2, 0, 0), 3);
+        balls.remove(a);
+
+        // The ball that came and went is left out, even though its id was reused.
+        Balls.Changes changes = balls.changesSince(start);
+        assertEquals(c, b);
+        assertEquals(changes.added, Arrays.asList(sphere(xyz(2, 0, 0), 3)));
+        assertEquals(changes.removed, Arrays.asList(sphere(xyz(0, 0, 0), balls.radius)));
+        assertEquals(changes.to, balls.version());
+        assertTrue(balls.changesSince(balls.version()).isEmpty());
+
+        balls.clear();
+        assertNull(balls.changesSince(start));
+    }
+
+    @Test
+    public void testRayPack() {
+        Balls balls = new Balls();
+        float r = balls.radius;
+        for (int i = -5; i <= 5; i++) {
+            for (int j = -5; j <= 5; j++) {
+                balls.add(xyz(2 * r * i + r * j, 0, (float) Math.sqrt(3) * r * j));
+            }
+        }
+        Random random = new Random(1);
+        for (int k = 0; k < 20; k++) {
+            // Somewhere on one of the balls near the middle.
+            int i = random.nextInt(5) - 2, j = random.nextInt(5) - 2;
+            Vec3 target = xyz(2 * r * i + r * j + random.nextFloat() * 6 - 3, 0,
+                (float) Math.sqrt(3) * r * j + random.nextFloat() * 6 - 3);
+            Vec3 ball = balls.rayPack(aToB(target.add(xyz(1, -200, 2)), target));
+
+            // It rests in a hollow of the floor, touching three balls and overlapping none.
+            int touching = 0;
+            for (Sphere other : balls.spheres()) {
+                float d = distance(ball, other.center());
+                assertTrue(d > 2 * r - 0.001);
+                if (d < 2 * r + 0.001) {
+                    touching++;
+                }
+            }
+            assertEquals(touching, 3);
+        }
+    }
+
+    @Test
+    public void testRayPackSizes() {
+        // A hexagonal floor of big balls, with small balls sprayed into its hollows; they are
+        // just too big to fit through the gap in the middle of each.
+        Balls balls = new Balls();
+        float big = 4 * balls.radius, small = balls.radius;
+        for (int i = -3; i <= 3; i++) {
+            for (int j = -3; j <= 3; j++) {
+                balls.add(xyz(2 * big * i + big * j, 0, (float) Math.sqrt(3) * big * j), big);
+            }
+        }
+        Random random = new Random(1);
+        for (int k = 0; k < 20; k++) {
+            int i = random.nextInt(3) - 1, j = random.nextInt(3) - 1;
+            Vec3 target = xyz(2 * big * i + big * j + random.nextFloat() * 10 - 5, 0,
+                (float) Math.sqrt(3) * big * j + random.nextFloat() * 10 - 5);
+            Vec3 ball = balls.rayPack(aToB(target.add(xyz(1, -400, 2)), target), small);
+
+            int touching = 0;
+            for (Sphere other : balls.spheres()) {
+                float d = distance(ball, other.center());
+                assertTrue(d > big + small - 0.001);
+                if (d < big + small + 0.001) {
+                    touching++;
+                }
+            }
+            assertEquals(touching, 3);
+        }
+    }
+
+    @Test
+    public void testWithin() {
+        Balls balls = new Balls();
+        int big = balls.add(xyz(100, 0, 0), 90), small = balls.add(xyz(20, 0, 0), 1);
+        balls.add(xyz(-30, 0, 0), 1);
+        // The big ball's surface is near even though its center is far.
+        int[] near = balls.within(xyz(0, 0, 0), 25);
+        Arrays.sort(near);
+        assertEquals(near, new int[]{ big, small });
+    }
+
+    @Test
+    public void testRayPackBatch() throws Exception {
+        Balls balls = new Balls();
+        for (float x = -100; x <= 100; x += 2 * balls.radius) {
+            for (float z = -100; z <= 100; z += 2 * balls.radius) {
+                balls.add(xyz(x, 0, z));
+            }
+        }
+        Line3 ray = aToB(xyz(0, -200, 0), xyz(0, 0, 0));
+        Line3 beside = aToB(xyz(64, -200, 0), xyz(64, 0, 0));
+        List<Line3> rays = newArrayList();
+        rays.add(ray);
+        rays.add(ray);
+        rays.add(beside);
+
+        // The repeated ray lands on the same spot as the first, so only one of them is kept.
+        List<Vec3> packed = balls.rayPack(rays);
+        assertEquals(packed.size(), 2);
+        assertEquals(distance(packed.get(0), balls.rayPack(ray)), 0, 0.0001);
+        assertEquals(distance(packed.get(1), balls.rayPack(beside)), 0, 0.0001);
+    }
+
+    @Test
+    public void testSetDistanceField() throws Exception {
+        Balls balls = new Balls();
+        int removed = balls.add(xyz(0, 0, 0));
+        balls.add(xyz(3 * balls.radius, 0, 0));
+        Balls snapshot = balls.snapshot();
+        DistanceField field = DistanceField.of(snapshot, balls.radius * SurfaceNets.cellScale);
+
+        // Changed while the field was being sampled.
+        balls.remove(removed);
+        balls.add(xyz(0, 3 * balls.radius, 0));
+        balls.setDistanceField(field, snapshot.version());
+        assertTrue(balls.distanceField() == field);
+
+        DistanceField expected = DistanceField.of(balls.snapshot(), balls.radius * SurfaceNets.cellScale);
+        for (float x = -5 * balls.radius; x <= 5 * balls.radius; x += balls.radius / 4) {
+            for (float y = -5 * balls.radius; y <= 5 * balls.radius; y += balls.radius / 4) {
+                assertEquals(field.distance(xyz(x, y, 0)), expected.distance(xyz(x, y, 0)), 0.0001);
+            }
+        }
+    }
+
+    /**
+     * The index of the ball the ray enters first, checking every one.
+     */
+    private static int bruteForce(List<Sphere> spheres, Line3 ray) {
+        int best = -1;
+        float bestEntry = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < spheres.size(); i++) {
+            Sphere ball = spheres.get(i);
+            Vec3 ac = ball.center().sub(ray.a());
+            float along = ac.dot(ray.ab().unit()), r = ball.radius();
+            float off = distance(ray, ball.center());
+            boolean hit = off < r && (along > 0 || ac.mag() < r);
+            float entry = along - (float) Math.sqrt(r * r - off * off);
+            if (hit && entry < bestEntry) {
+                best = i;
+                bestEntry = entry;
+            }
+        }
+        return best;
+    }
+
+}
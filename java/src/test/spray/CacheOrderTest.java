@@ -0,0 +1,69 @@
+package spray;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static spray.Geometry.xyz;
+
+public class CacheOrderTest {
+
+    @Test
+    public void testMissRatio() {
+        IndexedMesh strip = new IndexedMesh(new float[15], new int[]{ 0, 1, 2, 2, 1, 3, 2, 3, 4 });
+        assertEquals(CacheOrder.missRatio(strip, 16), 5f / 3, 0.0001);
+        assertEquals(CacheOrder.missRatio(strip, 1), 8f / 3, 0.0001);
+    }
+
+    @Test
+    public void testReorder() {
+        IndexedMesh grid = SimplificationTest.grid(60);
+
+        // Scatter the triangles over the grid, as hash order would.
+        int[] shuffled = grid.indices.clone();
+        int triangles = shuffled.length / 3;
+        for (int t = 0; t < triangles; t++) {
+            int u = (int) ((t * 2654435761L) % triangles);
+            for (int k = 0; k < 3; k++) {
+                int swap = shuffled[3 * t + k];
+                shuffled[3 * t + k] = shuffled[3 * u + k];
+                shuffled[3 * u + k] = swap;
+            }
+        }
+        IndexedMesh scattered = new IndexedMesh(grid.positions, shuffled);
+        IndexedMesh reordered = CacheOrder.reorder(scattered);
+
+        assertEquals(reordered.triangleCount(), scattered.triangleCount());
+        assertEquals(reordered.vertexCount(), scattered.vertexCount());
+        assertTrue(CacheOrder.missRatio(scattered, 16) > 2);
+        assertTrue(CacheOrder.missRatio(reordered, 16) < 0.8);
+
+        // Vertices are numbered by first use.
+        int next = 0;
+        for (int v : reordered.indices) {
+            assertTrue(v <= next);
+            if (v == next) {
+                next++;
+            }
+        }
+    }
+
+    @Test
+    public void testNormalsCarriedOver() throws Exception {
+        IndexedMesh mesh = SurfaceNets.mesh(new Balls(Arrays.asList(xyz(0, 0, 0), xyz(10, 0, 0))));
+        mesh.normals();
+        IndexedMesh reordered = CacheOrder.reorder(mesh);
+        assertTrue(reordered.hasNormals());
+
+        // The same as computing them afresh for the reordered mesh.
+        float[] fresh = new IndexedMesh(reordered.positions, reordered.indices).normals();
+        float[] carried = reordered.normals();
+        assertEquals(carried.length, fresh.length);
+        for (int i = 0; i < fresh.length; i++) {
+            assertEquals(carried[i], fresh[i], 0.0001);
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package spray;
+
+import org.testng.annotations.Test;
+import spray.Geometry.Vec3;
+
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static spray.Geometry.xyz;
+
+public class DistanceFieldTest {
+
+    @Test
+    public void testDistance() {
+        DistanceField field = new DistanceField(8, 4);
+        field.add(xyz(0, 0, 0));
+        assertEquals(field.distance(xyz(0, 0, 0)), -8, 0.001);
+        assertEquals(field.distance(xyz(12, 0, 0)), 4, 0.001);
+        assertEquals(field.distance(xyz(100, 0, 0)), 8, 0.001);
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        Vec3 a = xyz(0, 0, 0), b = xyz(10, 3, 0), c = xyz(-7, 50, 2);
+        DistanceField field = new DistanceField(8, 4);
+        field.add(a);
+        field.add(b);
+        field.add(c);
+        field.remove(b);
+
+        DistanceField expected = DistanceField.of(new Balls(Arrays.asList(a, c)), 4);
+        for (int x = -10; x <= 10; x++) {
+            for (int y = -5; y <= 20; y++) {
+                for (int z = -5; z <= 5; z++) {
+                    assertEquals(field.value(x, y, z), expected.value(x, y, z), 0.0001);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshot() {
+        DistanceField field = new DistanceField(8, 4);
+        field.add(xyz(0, 0, 0));
+        DistanceField snapshot = field.snapshot();
+        field.add(xyz(12, 0, 0));
+        field.remove(xyz(0, 0, 0));
+
+        assertEquals(snapshot.distance(xyz(0, 0, 0)), -8, 0.001);
+        assertEquals(snapshot.distance(xyz(12, 0, 0)), 4, 0.001);
+        assertEquals(field.distance(xyz(0, 0, 0)), 4, 0.001);
+        assertEquals(field.distance(xyz(12, 0, 0)), -8, 0.001);
+    }
+
+}
@@ -3,6 +3,7 @@ package spray;
 import org.testng.annotations.Test;
 
 import java.util.Collection;
+import java.util.List;
 
 import static java.lang.Math.*;
 import static java.util.Arrays.asList;
@@ -48,6 +49,11 @@ public class GeometryTest {
         return false;
     }
 
+    void assertApprox(Vec3 actual, Vec3 expected) {
+        if (distance(actual, expected) > 1e-5) throw new AssertionError(
+            String.format("Expected %s but got %s", expected, actual));
+    }
+
     void assertLess(float a, float b) {
         if (a >= b) throw new AssertionError(String.format("Expected a < b, got a=%f, b=%f", a, b));
     }
@@ -233,4 +239,62 @@ public class GeometryTest {
         assertApprox(x.x(), -6);
     }
 
+    /** The unit circle around the z axis. */
+    Circle3 unitCircle() {
+        return new SimpleCircle3(origin3(), xyz(0, 0, 1), 1);
+    }
+
+    @Test
+    public void testCircleSphereIntersectTwo() {
+        List<Vec3> points = intersect(unitCircle(), sphere(xyz(1, 0, 0), 1));
+        assertEquals(points.size(), 2);
+        assertApprox(points.get(0), xyz(.5, (float) sqrt(.75), 0));
+        assertApprox(points.get(1), xyz(.5, (float) -sqrt(.75), 0));
+    }
+
+    @Test
+    public void testCircleSphereIntersectTwoOutOfPlane() {
+        // The sphere's center is off the circle's plane, so it cuts the plane in a smaller circle.
+        List<Vec3> points = intersect(unitCircle(), sphere(xyz(1, 0, .6f), 1));
+        assertEquals(points.size(), 2);
+        for (Vec3 p : points) {
+            assertApprox(p.mag(), 1);
+            assertApprox(distance(p, xyz(1, 0, .6f)), 1);
+        }
+    }
+
+    @Test
+    public void testCircleSphereIntersectNone() {
+        // Too far away within the plane, inside the circle, and clear of the plane.
+        assertEquals(intersect(unitCircle(), sphere(xyz(3, 0, 0), 1)).size(), 0);
+        assertEquals(intersect(unitCircle(), sphere(xyz(.2f, 0, 0), .5f)).size(), 0);
+        assertEquals(intersect(unitCircle(), sphere(xyz(1, 0, 2), 1)).size(), 0);
+    }
+
+    @Test
+    public void testCircleSphereIntersectTangent() {
+        // Touching from the side, the two points coincide.
+        List<Vec3> side = intersect(unitCircle(), sphere(xyz(2, 0, 0), 1));
+        assertEquals(side.size(), 2);
+        assertApprox(side.get(0), xyz(1, 0, 0));
+        assertApprox(side.get(1), xyz(1, 0, 0));
+
+        // And likewise touching the plane at a point of the circle.
+        List<Vec3> above = intersect(unitCircle(), sphere(xyz(1, 0, 1), 1));
+        assertEquals(above.size(), 2);
+        assertApprox(above.get(0), xyz(1, 0, 0));
+        assertApprox(above.get(1), xyz(1, 0, 0));
+    }
+
+    @Test
+    public void testAngleAroundLine() {
+        Line3 axis = aToB(xyz(1, 2, 3), xyz(2, 3, 5));
+        Vec3 from = xyz(4, -1, 2);
+        for (float angle : new float[]{ .5f, 2, 4, 6 }) {
+            assertEquals(angleAroundLine(axis, from, rotatePointAroundLine(axis, from, angle)), angle, 1e-4);
+        }
+        // A small turn the other way is nearly all the way around.
+        assertEquals(angleAroundLine(axis, from, rotatePointAroundLine(axis, from, -.5f)), 2 * PI - .5f, 1e-4);
+    }
+
 }
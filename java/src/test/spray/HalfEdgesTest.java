@@ -0,0 +1,70 @@
+package spray;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class HalfEdgesTest {
+
+    @Test
+    public void testTetrahedron() {
+        HalfEdges edges = new IndexedMesh(new float[12], new int[]{ 0, 1, 2, 0, 3, 1, 0, 2, 3, 1, 3, 2 }).halfEdges();
+        for (int h = 0; h < edges.halfEdgeCount(); h++) {
+            int twin = edges.twin[h];
+            assertTrue(twin != -1);
+            assertEquals(edges.twin[twin], h);
+            assertEquals(edges.vertex[twin], edges.head(h));
+            assertEquals(edges.head(twin), edges.vertex[h]);
+        }
+        // Three triangles around each vertex, with no boundary to stop at.
+        for (int v = 0; v < 4; v++) {
+            int start = edges.outgoing[v], h = start, count = 0;
+            do {
+                assertEquals(edges.vertex[h], v);
+                h = edges.nextAround(h);
+                count++;
+            } while (h != start);
+            assertEquals(count, 3);
+        }
+    }
+
+    @Test
+    public void testBoundary() {
+        HalfEdges edges = SimplificationTest.grid(3).halfEdges();
+        int boundary = 0;
+        for (int h = 0; h < edges.halfEdgeCount(); h++) {
+            if (edges.isBoundary(h)) {
+                boundary++;
+            }
+        }
+        assertEquals(boundary, 12);
+
+        // The middle vertices are surrounded; corner 0 has a fan of one triangle, and corner 3 of two.
+        assertEquals(fan(edges, 5), 6);
+        assertEquals(fan(edges, 0), 2);
+        assertEquals(fan(edges, 3), 1);
+    }
+
+    @Test
+    public void testNonManifold() {
+        // Three triangles on the edge 0-1.
+        HalfEdges edges = new IndexedMesh(new float[15], new int[]{ 0, 1, 2, 1, 0, 3, 1, 0, 4 }).halfEdges();
+        assertEquals(edges.twin[0], -1);
+        assertEquals(edges.twin[3], -1);
+        assertEquals(edges.twin[6], -1);
+    }
+
+    /**
+     * The number of triangles around the vertex, walking from its outgoing half-edge.
+     */
+    private static int fan(HalfEdges edges, int v) {
+        int start = edges.outgoing[v], h = start, count = 0;
+        do {
+            h = edges.nextAround(h);
+            count++;
+        } while (h != -1 && h != start);
+        return count;
+    }
+
+}
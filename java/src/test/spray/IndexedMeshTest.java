@@ -0,0 +1,51 @@
+package spray;
+
+import org.testng.annotations.Test;
+import spray.Geometry.Vec3;
+
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static spray.Geometry.xyz;
+
+public class IndexedMeshTest {
+
+    @Test
+    public void testTetrahedron() {
+        // Wound so that (b - a) x (c - a) points inward.
+        IndexedMesh mesh = new IndexedMesh(
+            new float[]{ 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1 },
+            new int[]{ 0, 1, 2, 0, 3, 1, 0, 2, 3, 1, 3, 2 });
+        float[] n = mesh.normals();
+        float k = (float) (1 / Math.sqrt(3));
+        assertEquals(n[0], -k, 0.0001);
+        assertEquals(n[1], -k, 0.0001);
+        assertEquals(n[2], -k, 0.0001);
+        // The slanted face is the largest, so its weight cancels the other two faces at each outer corner.
+        assertEquals(n[3], 1, 0.0001);
+        assertEquals(n[4], 0, 0.0001);
+        assertEquals(n[5], 0, 0.0001);
+    }
+
+    @Test
+    public void testOutward() throws Exception {
+        List<Vec3> centers = newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            centers.add(xyz(i * 10, 0, 0));
+        }
+        IndexedMesh mesh = SurfaceNets.mesh(new Balls(centers));
+        assertTrue(mesh.vertexCount() > 4096);
+        float[] p = mesh.positions, n = mesh.normals();
+        for (int v = 0; v < mesh.vertexCount(); v++) {
+            float length = n[3 * v] * n[3 * v] + n[3 * v + 1] * n[3 * v + 1] + n[3 * v + 2] * n[3 * v + 2];
+            assertEquals(length, 1, 0.001);
+            // Away from the ends, the surface is a tube around the x axis.
+            if (p[3 * v] > 50 && p[3 * v] < 9940) {
+                assertTrue(p[3 * v + 1] * n[3 * v + 1] + p[3 * v + 2] * n[3 * v + 2] > 0);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package spray;
+
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static com.google.common.collect.Maps.newHashMap;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class LongMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongMap<String> map = new LongMap<String>();
+        assertNull(map.put(5, "a"));
+        assertNull(map.put(0, "zero"));
+        assertEquals(map.put(5, "b"), "a");
+        assertEquals(map.get(5), "b");
+        assertEquals(map.get(0), "zero");
+        assertEquals(map.size(), 2);
+        assertEquals(map.remove(5), "b");
+        assertNull(map.get(5));
+        assertEquals(map.size(), 1);
+    }
+
+    @Test
+    public void testAgainstHashMap() {
+        Random random = new Random(0);
+        LongMap<Long> map = new LongMap<Long>();
+        Map<Long, Long> expected = newHashMap();
+        for (int i = 0; i < 20000; i++) {
+            long key = ((long) random.nextInt(300) << 32) | random.nextInt(300);
+            if (random.nextBoolean()) {
+                assertEquals(map.put(key, key), expected.put(key, key));
+            } else {
+                assertEquals(map.remove(key), expected.remove(key));
+            }
+        }
+        assertEquals(map.size(), expected.size());
+        for (Long key : expected.keySet()) {
+            assertEquals(map.get(key), key);
+        }
+        int count = 0;
+        for (Long value : map.values()) {
+            assertTrue(expected.containsKey(value));
+            count++;
+        }
+        assertEquals(count, expected.size());
+    }
+
+    @Test
+    public void testSet() {
+        LongSet set = new LongSet();
+        assertTrue(set.add(1L << 32 | 2));
+        assertFalse(set.add(1L << 32 | 2));
+        assertTrue(set.add(0));
+        LongSet other = new LongSet();
+        other.addAll(set);
+        assertTrue(other.contains(0));
+        assertTrue(other.remove(1L << 32 | 2));
+        assertFalse(other.contains(1L << 32 | 2));
+        assertEquals(other.size(), 1);
+    }
+
+}
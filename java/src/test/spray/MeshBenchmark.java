@@ -0,0 +1,128 @@
+package spray;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static spray.Geometry.angleVec2;
+import static spray.Geometry.xyz;
+
+/**
+ * Times full mesh builds of large wall and cone scenes: by ball pivoting with the
+ * front's sweeps in Morton order and in the order their edges were opened, and
+ * by surface nets.
+ *
+ * Run with the scale of the scenes as an optional argument.
+ */
+public class MeshBenchmark {
+
+    static final int runs = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+
+        int scale = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+        Balls wall = wall(scale);
+        Balls cone = cone(scale);
+
+        Engine[] engines = { pivoting(true), pivoting(false), surfaceNets() };
+
+        // Warm up the JIT on every engine before timing anything.
+        for (Engine engine : engines) {
+            engine.mesh(wall);
+            engine.mesh(cone);
+        }
+
+        for (Engine engine : engines) {
+            report("wall", wall, engine);
+            report("cone", cone, engine);
+        }
+    }
+
+    abstract static class Engine {
+
+        final String name;
+
+        Engine(String name) {
+            this.name = name;
+        }
+
+        abstract IndexedMesh mesh(Balls balls) throws InterruptedException;
+
+    }
+
+    static Engine pivoting(final boolean sorted) {
+        return new Engine(sorted ? "morton" : "opened") {
+            IndexedMesh mesh(Balls balls) {
+                boolean sortedSweeps = Mesh.sortedSweeps;
+                Mesh.sortedSweeps = sorted;
+                try {
+                    return new Mesh(balls).indexed();
+                } finally {
+                    Mesh.sortedSweeps = sortedSweeps;
+                }
+            }
+        };
+    }
+
+    static Engine surfaceNets() {
+        return new Engine("nets") {
+            IndexedMesh mesh(Balls balls) throws InterruptedException {
+                return SurfaceNets.mesh(balls);
+            }
+        };
+    }
+
+    static void report(String name, Balls balls, Engine engine) throws InterruptedException {
+        long[] millis = new long[runs];
+        int triangles = 0;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            IndexedMesh mesh = engine.mesh(balls);
+            millis[i] = (System.nanoTime() - start) / 1000000;
+            triangles = mesh.triangleCount();
+        }
+        Arrays.sort(millis);
+        System.out.println(String.format("%-5s %-7s balls=%-7d triangles=%-7d median=%dms min=%dms",
+            name, engine.name, balls.size(), triangles, millis[runs / 2], millis[0]));
+    }
+
+    /**
+     * Two layers of jittered balls, 400 units high and 400 * scale wide.
+     */
+    static Balls wall(int scale) {
+        Random random = new Random(1);
+        Balls balls = new Balls();
+        for (int y = 0; y < 2; y++) {
+            for (float x = -200 * scale; x < 200 * scale; x += balls.radius * 2) {
+                for (float z = 0; z < 400; z += balls.radius * 2) {
+                    balls.add(xyz(
+                        x + random.nextFloat(),
+                        y * balls.radius * 2 + random.nextFloat() * 4,
+                        z + random.nextFloat()));
+                }
+            }
+        }
+        return balls;
+    }
+
+    /**
+     * The cone from Main, stretched to scale times its height at the same density.
+     */
+    static Balls cone(int scale) {
+        Random random = new Random(1);
+        Balls balls = new Balls();
+        float angle = 0;
+        float height = 0;
+        float mag = 100;
+        for (int i = 0; i < 1000 * scale; i++) {
+            height += 0.5f;
+            angle += 0.5f;
+            mag -= 0.1f / scale;
+            balls.add(angleVec2(angle, mag).in3d().addZ(height).add(
+                xyz(random.nextFloat(), random.nextFloat(), random.nextFloat())
+            ));
+        }
+        return balls;
+    }
+
+}
@@ -1,12 +1,22 @@
 package spray;
 
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
 import org.testng.annotations.Test;
+import spray.Geometry.Sphere;
 import spray.Geometry.Vec3;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import static com.google.common.collect.Sets.newHashSet;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 import static spray.Geometry.origin3;
+import static spray.Geometry.sphere;
 import static spray.Geometry.xyz;
 
 public class MeshTest {
@@ -15,7 +25,7 @@ public class MeshTest {
     public void test1() {
         Mesh mesh = new Mesh();
         mesh.rollingScale = 3;
-        mesh.setBalls(new Balls<Vec3>(Arrays.<Vec3>asList(
+        mesh.setBalls(new Balls(Arrays.<Vec3>asList(
             xyz(1, 0, 0),
             xyz(0, 1, 0),
             xyz(0, 0, 1)
@@ -27,7 +37,7 @@ public class MeshTest {
     public void test2() {
         Mesh mesh = new Mesh();
         mesh.rollingScale = 3;
-        mesh.setBalls(new Balls<Vec3>(Arrays.<Vec3>asList(
+        mesh.setBalls(new Balls(Arrays.<Vec3>asList(
             xyz(1, 0, 0),
             xyz(0, 1, 0),
             xyz(0, 0, 1),
@@ -40,7 +50,7 @@ public class MeshTest {
     public void test3() {
         Mesh mesh = new Mesh();
         mesh.rollingScale = 10;
-        mesh.setBalls(new Balls<Vec3>(Arrays.<Vec3>asList(
+        mesh.setBalls(new Balls(Arrays.<Vec3>asList(
             xyz(1, 0, 0),
             xyz(0, 1, 0),
             xyz(0, 0, 1),
@@ -50,4 +60,221 @@ public class MeshTest {
         assertEquals(mesh.triangles.size(), 4);
     }
 
+    @Test
+    public void testRadii() {
+        // A tetrahedron too wide for the rolling ball to bridge between default-sized balls.
+        float a = 19.5f;
+        List<Vec3> corners = Arrays.<Vec3>asList(xyz(a, a, a), xyz(a, -a, -a), xyz(-a, a, -a), xyz(-a, -a, a));
+        Mesh mesh = new Mesh();
+        mesh.rollingScale = 3;
+        mesh.setBalls(new Balls(corners));
+        assertEquals(mesh.triangles.size(), 0);
+
+        // The rolling ball keeps its distance from the surfaces of bigger balls, so it reaches across.
+        Balls big = new Balls();
+        for (Vec3 corner : corners) {
+            big.add(corner, 2 * big.radius);
+        }
+        mesh.setBalls(big);
+        assertEquals(mesh.triangles.size(), 4);
+    }
+
+    @Test
+    public void testUpdateAdd() {
+        Sphere d = sphere(origin3(), 8);
+        Mesh mesh = new Mesh();
+        mesh.rollingScale = 3;
+        mesh.setBalls(new Balls(Arrays.<Vec3>asList(
+            xyz(1, 0, 0),
+            xyz(0, 1, 0),
+            xyz(0, 0, 1)
+        )));
+        mesh.update(Arrays.asList(d), Collections.<Sphere>emptyList());
+        assertEquals(mesh.triangles.size(), 4);
+    }
+
+    @Test
+    public void testUpdateRemove() {
+        Sphere d = sphere(origin3(), 8);
+        Mesh mesh = new Mesh();
+        mesh.rollingScale = 3;
+        mesh.setBalls(new Balls(Arrays.<Vec3>asList(
+            xyz(1, 0, 0),
+            xyz(0, 1, 0),
+            xyz(0, 0, 1),
+            d.center()
+        )));
+        mesh.update(Collections.<Sphere>emptyList(), Arrays.asList(d));
+        assertEquals(mesh.triangles.size(), 2);
+    }
+
+    @Test
+    public void testTiled() {
+        int tiledComponentSize = Mesh.tiledComponentSize;
+        float tileScale = Mesh.tileScale;
+        Mesh.tiledComponentSize = 0;
+        Mesh.tileScale = 0.05f;
+        try {
+            Mesh mesh = new Mesh();
+            mesh.rollingScale = 3;
+            mesh.setBalls(new Balls(Arrays.<Vec3>asList(
+                xyz(1, 0, 0),
+                xyz(0, 1, 0),
+                xyz(0, 0, 1),
+                xyz(1.2, 1.2, 1.2),
+                origin3()
+            )));
+            assertEquals(mesh.triangles.size(), 6);
+        } finally {
+            Mesh.tiledComponentSize = tiledComponentSize;
+            Mesh.tileScale = tileScale;
+        }
+    }
+
+    @Test
+    public void testTiledMatchesSerial() {
+        Balls balls = MeshBenchmark.wall(2);
+        Mesh serial = new Mesh();
+        serial.setBalls(balls);
+
+        int tiledComponentSize = Mesh.tiledComponentSize;
+        float tileScale = Mesh.tileScale;
+        Mesh.tiledComponentSize = 0;
+        Mesh.tileScale = 1;
+        try {
+            Mesh tiled = new Mesh();
+            tiled.setBalls(balls);
+
+            int[] expected = edgeStats(serial.indexed()), actual = edgeStats(tiled.indexed());
+            assertEquals(actual[0], 0, "duplicate triangles");
+            assertEquals(actual[1], 0, "boundary edges");
+            assertTrue(actual[2] <= expected[2], "non-manifold edges: " + actual[2] + " > " + expected[2]);
+        } finally {
+            Mesh.tiledComponentSize = tiledComponentSize;
+            Mesh.tileScale = tileScale;
+        }
+    }
+
+    @Test
+    public void testUpdateAfterInterrupt() {
+        Mesh mesh = new Mesh();
+        mesh.rollingScale = 3;
+        mesh.setBalls(new Balls(Arrays.<Vec3>asList(
+            xyz(1, 0, 0),
+            xyz(0, 1, 0),
+            xyz(0, 0, 1)
+        )));
+        // As left by a setBalls whose thread was interrupted.
+        mesh.cancelled = true;
+        assertEquals(mesh.update(Arrays.asList(sphere(origin3(), 8)), Collections.<Sphere>emptyList(),
+            1, TimeUnit.MINUTES), true);
+        assertEquals(mesh.triangles.size(), 4);
+    }
+
+    @Test
+    public void testResumeTiled() {
+        Balls balls = MeshBenchmark.wall(2);
+        Mesh serial = new Mesh();
+        serial.setBalls(balls);
+
+        int tiledComponentSize = Mesh.tiledComponentSize;
+        int tiledFrontSize = Mesh.tiledFrontSize;
+        float tileScale = Mesh.tileScale;
+        Mesh.tiledComponentSize = 0;
+        Mesh.tiledFrontSize = 0;
+        Mesh.tileScale = 1;
+        try {
+            Mesh resumed = new Mesh();
+            assertEquals(resumed.setBalls(balls, 0, TimeUnit.NANOSECONDS), false);
+            assertEquals(resumed.update(Collections.<Sphere>emptyList(), Collections.<Sphere>emptyList(),
+                1, TimeUnit.MINUTES), true);
+
+            int[] expected = edgeStats(serial.indexed()), actual = edgeStats(resumed.indexed());
+            assertEquals(actual[0], 0, "duplicate triangles");
+            assertEquals(actual[1], 0, "boundary edges");
+            assertTrue(actual[2] <= expected[2], "non-manifold edges: " + actual[2] + " > " + expected[2]);
+        } finally {
+            Mesh.tiledComponentSize = tiledComponentSize;
+            Mesh.tiledFrontSize = tiledFrontSize;
+            Mesh.tileScale = tileScale;
+        }
+    }
+
+    /** Count duplicate triangles, edges with one triangle and edges with more than two. */
+    private static int[] edgeStats(IndexedMesh mesh) {
+        int[] stats = new int[3];
+        Set<List<Integer>> triangles = newHashSet();
+        Multiset<List<Integer>> edges = HashMultiset.create();
+        for (int i = 0; i < mesh.indices.length; i += 3) {
+            Integer[] triangle = { mesh.indices[i], mesh.indices[i + 1], mesh.indices[i + 2] };
+            for (int j = 0; j < 3; j++) {
+                int a = triangle[j], b = triangle[(j + 1) % 3];
+                edges.add(Arrays.asList(Math.min(a, b), Math.max(a, b)));
+            }
+            Arrays.sort(triangle);
+            if (!triangles.add(Arrays.asList(triangle))) {
+                stats[0]++;
+            }
+        }
+        for (Multiset.Entry<List<Integer>> edge : edges.entrySet()) {
+            if (edge.getCount() == 1) {
+                stats[1]++;
+            } else if (edge.getCount() > 2) {
+                stats[2]++;
+            }
+        }
+        return stats;
+    }
+
+    @Test
+    public void testIndexed() {
+        Mesh mesh = new Mesh();
+        mesh.rollingScale = 3;
+        mesh.setBalls(new Balls(Arrays.<Vec3>asList(
+            xyz(1, 0, 0),
+            xyz(0, 1, 0),
+            xyz(0, 0, 1),
+            origin3()
+        )));
+        IndexedMesh indexed = mesh.indexed();
+        assertEquals(indexed.vertexCount(), 4);
+        assertEquals(indexed.triangleCount(), 4);
+    }
+
+    @Test
+    public void testSmallComponents() {
+        Mesh mesh = new Mesh();
+        mesh.rollingScale = 3;
+        mesh.setBalls(new Balls(Arrays.<Vec3>asList(
+            xyz(1, 0, 0),
+            xyz(0, 1, 0),
+            xyz(0, 0, 1),
+            origin3(),
+            xyz(500, 0, 0),
+            xyz(0, 500, 0),
+            xyz(0, 501, 0)
+        )));
+        assertEquals(mesh.triangles.size(), 4);
+    }
+
+    @Test
+    public void testResume() {
+        Balls balls = new Balls(Arrays.<Vec3>asList(
+            xyz(1, 0, 0),
+            xyz(0, 1, 0),
+            xyz(0, 0, 1),
+            origin3(),
+            xyz(500, 0, 0),
+            xyz(501, 0, 0),
+            xyz(500, 1, 0),
+            xyz(500, 0, 1)
+        ));
+        Mesh mesh = new Mesh();
+        mesh.rollingScale = 3;
+        assertEquals(mesh.setBalls(balls, 0, TimeUnit.NANOSECONDS), false);
+        assertEquals(mesh.update(Collections.<Sphere>emptyList(), Collections.<Sphere>emptyList(),
+            1, TimeUnit.MINUTES), true);
+        assertEquals(mesh.triangles.size(), 8);
+    }
+
 }
@@ -0,0 +1,63 @@
+package spray;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static spray.Geometry.xyz;
+
+public class SimplificationTest {
+
+    /**
+     * A flat square of n by n cells, two triangles each.
+     */
+    static IndexedMesh grid(int n) {
+        float[] positions = new float[(n + 1) * (n + 1) * 3];
+        for (int y = 0; y <= n; y++) {
+            for (int x = 0; x <= n; x++) {
+                int v = y * (n + 1) + x;
+                positions[3 * v] = x;
+                positions[3 * v + 1] = y;
+            }
+        }
+        int[] indices = new int[n * n * 6];
+        int i = 0;
+        for (int y = 0; y < n; y++) {
+            for (int x = 0; x < n; x++) {
+                int a = y * (n + 1) + x, b = a + 1, c = a + n + 1, d = c + 1;
+                indices[i++] = a;
+                indices[i++] = b;
+                indices[i++] = d;
+                indices[i++] = a;
+                indices[i++] = d;
+                indices[i++] = c;
+            }
+        }
+        return new IndexedMesh(positions, indices);
+    }
+
+    @Test
+    public void testFlat() {
+        IndexedMesh simplified = Simplification.simplify(grid(10), 0, 0.001f);
+        assertTrue(simplified.triangleCount() < 20);
+        // The outline stays put, so no vertex leaves the square.
+        for (float p : simplified.positions) {
+            assertTrue(p >= -0.001 && p <= 10.001);
+        }
+    }
+
+    @Test
+    public void testTarget() throws Exception {
+        IndexedMesh mesh = SurfaceNets.mesh(new Balls(Arrays.asList(xyz(0, 0, 0), xyz(10, 0, 0))));
+        int target = mesh.triangleCount() / 2;
+        IndexedMesh simplified = Simplification.simplify(mesh, target, Float.MAX_VALUE);
+        assertTrue(simplified.triangleCount() <= target);
+        assertTrue(simplified.triangleCount() >= target - 2);
+
+        // Still a closed surface: V - E + F = 2.
+        assertEquals(simplified.vertexCount() - simplified.indices.length / 2 + simplified.triangleCount(), 2);
+    }
+
+}
@@ -0,0 +1,40 @@
+package spray;
+
+import org.testng.annotations.Test;
+import spray.Geometry.Vec3;
+
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static spray.Geometry.xyz;
+
+public class SpatialHashTest {
+
+    @Test
+    public void testWithin() {
+        Vec3 a = xyz(0, 0, 0), b = xyz(3, 0, 0), c = xyz(-9, 4, 1);
+        SpatialHash<Vec3> grid = new SpatialHash<Vec3>(2, Arrays.asList(a, b, c));
+        assertEquals(grid.within(xyz(1, 0, 0), 2.5f).size(), 2);
+        assertEquals(grid.within(xyz(-9, 4, 0), 1.5f).size(), 1);
+        assertTrue(grid.within(xyz(50, 50, 50), 10).isEmpty());
+    }
+
+    @Test
+    public void testRemove() {
+        Vec3 a = xyz(1, 1, 1), b = xyz(1.5, 1, 1);
+        SpatialHash<Vec3> grid = new SpatialHash<Vec3>(4, Arrays.asList(a, b));
+        assertTrue(grid.remove(a));
+        assertEquals(grid.within(a, 1).size(), 1);
+        assertEquals(grid.size(), 1);
+    }
+
+    @Test
+    public void testMorton() {
+        assertEquals(SpatialHash.morton(xyz(0.5, 0.5, 0.5), 1) & 7, 0);
+        assertEquals(SpatialHash.morton(xyz(1.5, 0.5, 0.5), 1) & 7, 4);
+        assertEquals(SpatialHash.morton(xyz(0.5, 1.5, 1.5), 1) & 7, 3);
+        assertTrue(SpatialHash.morton(xyz(-0.5, 0, 0), 1) < SpatialHash.morton(xyz(0.5, 0, 0), 1));
+    }
+
+}
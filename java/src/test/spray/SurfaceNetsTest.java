@@ -0,0 +1,61 @@
+package spray;
+
+import org.testng.annotations.Test;
+import spray.Geometry.Vec3;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static spray.Geometry.xyz;
+
+public class SurfaceNetsTest {
+
+    @Test
+    public void testEmpty() throws Exception {
+        IndexedMesh mesh = SurfaceNets.mesh(new Balls(Collections.<Vec3>emptyList()));
+        assertEquals(mesh.triangleCount(), 0);
+    }
+
+    @Test
+    public void testClosed() throws Exception {
+        // Straddle chunk boundaries, so that quads join vertices from several chunks.
+        IndexedMesh mesh = SurfaceNets.mesh(new Balls(Arrays.<Vec3>asList(
+            xyz(0, 0, 0),
+            xyz(10, 0, 0),
+            xyz(-60, 3, -2)
+        )));
+
+        // Every directed edge is matched by its reverse exactly once.
+        LongMap<Integer> directed = new LongMap<Integer>();
+        int[] ix = mesh.indices;
+        for (int t = 0; t < ix.length; t += 3) {
+            for (int k = 0; k < 3; k++) {
+                long edge = (long) ix[t + k] << 32 | ix[t + (k + 1) % 3];
+                assertEquals(directed.put(edge, t), null);
+            }
+        }
+        for (int t = 0; t < ix.length; t += 3) {
+            for (int k = 0; k < 3; k++) {
+                assertTrue(directed.containsKey((long) ix[t + (k + 1) % 3] << 32 | ix[t + k]));
+            }
+        }
+
+        // Two spheres: V - E + F = 2 for each.
+        int edges = ix.length / 2;
+        assertEquals(mesh.vertexCount() - edges + mesh.triangleCount(), 4);
+
+        // Triangles face into the balls, like those of Mesh, so the signed volume is negative.
+        float[] p = mesh.positions;
+        double volume = 0;
+        for (int t = 0; t < ix.length; t += 3) {
+            Vec3 a = xyz(p[ix[t] * 3], p[ix[t] * 3 + 1], p[ix[t] * 3 + 2]);
+            Vec3 b = xyz(p[ix[t + 1] * 3], p[ix[t + 1] * 3 + 1], p[ix[t + 1] * 3 + 2]);
+            Vec3 c = xyz(p[ix[t + 2] * 3], p[ix[t + 2] * 3 + 1], p[ix[t + 2] * 3 + 2]);
+            volume += a.dot(b.cross(c)) / 6;
+        }
+        assertTrue(volume < 0);
+    }
+
+}